@@ -1,21 +1,245 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 
 /**
  * Single-file Java OOP console application: BankApp
  * - Put this code into BankApp.java
  * - Compile: javac BankApp.java
- * - Run:     java BankApp
+ * - Run:     java BankApp [--off-heap | --tiered capacity [--page-file f]] [--journal bank.journal [--snapshot bank.snapshot] [--snapshot-interval seconds]]
+ * - Batch:   java BankApp batch [commands.txt | -] [--journal ...]   (commands: see CommandProcessor)
+ * - Serve:   java BankApp serve [port] [--journal ...]   (same commands over TCP on localhost, default port 7070)
+ * - HTTP:    add --http port to run or serve for the JSON API (see HttpApi)
+ * - Cluster: java BankApp cluster shards [port] [--data dir]   (starts the shards too; see ShardRouter)
+ *            java BankApp router [port] --shards host:port,... --coordinator-log file
+ * - Limits:  serve and --http accept --max-concurrent, --max-queue, --queue-timeout-ms, --overload
+ * - Writer:  serve --pipeline [--ring-size slots] applies commands on one thread (see LedgerPipeline)
+ * - Metrics: menu option 10, the "metrics" command, or GET /metrics (see BankMetrics)
+ * - Bench:   java BankApp bench-transfers [threads] [accounts] [hotAccounts] [seconds] [--journal file] [--pipeline]
+ * - JMH:     mvn -f jmh/pom.xml package && java -jar jmh/target/benchmarks.jar   (see jmh/pom.xml)
  *
  * Designed to demonstrate OOP: abstraction, inheritance, encapsulation, composition.
  */
 
 public class BankApp {
-    public static void main(String[] args) {
-        Bank bank = new Bank("Simple Bank");
-        bank.seedDemoData(); // optional demo accounts
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && "bench-transfers".equals(args[0])) {
+            TransferBenchmark.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && ("router".equals(args[0]) || "cluster".equals(args[0]))) {
+            runRouter(args);
+            return;
+        }
+        boolean batch = args.length > 0 && "batch".equals(args[0]);
+        Bank bank = new Bank("Simple Bank", accountStore(args));
+        String journalPath = optionValue(args, "--journal");
+        String snapshotPath = optionValue(args, "--snapshot");
+        if (journalPath != null) {
+            // rebuilds accounts from the latest snapshot plus the journal written after it
+            bank.openJournal(Paths.get(journalPath), snapshotPath == null ? null : Paths.get(snapshotPath));
+            if (snapshotPath != null) {
+                String interval = optionValue(args, "--snapshot-interval");
+                bank.startSnapshots(interval == null ? 300 : Long.parseLong(interval));
+            }
+        }
+        if (batch) {
+            // replies go to stdout, the throughput report to stderr
+            String input = args.length > 1 && !args[1].startsWith("--") ? args[1] : "-";
+            Writer out = new OutputStreamWriter(new BufferedOutputStream(System.out, 1 << 16), StandardCharsets.UTF_8);
+            try (BufferedReader in = BatchRunner.open(input)) {
+                System.err.println(BatchRunner.run(bank, in, out));
+            }
+            bank.close();
+            return;
+        }
+        if (bank.getAccounts().isEmpty() && !Arrays.asList(args).contains("--no-demo")) {
+            bank.seedDemoData(); // optional demo accounts
+        }
+        String httpPort = optionValue(args, "--http");
+        AdmissionController admission = AdmissionController.fromArgs(bank, args);
+        HttpApi http = httpPort == null ? null : new HttpApi(bank, Integer.parseInt(httpPort), admission);
+        if (http != null) System.out.println("HTTP API on http://localhost:" + http.port() + "/accounts");
+        if (args.length > 0 && "serve".equals(args[0])) {
+            int port = args.length > 1 && !args[1].startsWith("--") ? Integer.parseInt(args[1]) : 7070;
+            LedgerPipeline pipeline = ledgerPipeline(bank, args);
+            LineServer server = new LineServer(new CommandProcessor(bank, admission, pipeline), port);
+            // runs until the process is stopped; the hook drains the journal on the way out
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.close();
+                    if (pipeline != null) pipeline.close();
+                    if (http != null) http.close();
+                    bank.close();
+                } catch (IOException e) {
+                    System.err.println("Shutdown: " + e);
+                }
+            }));
+            System.out.println("Listening on " + InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.port()
+                    + " (Ctrl-C to stop)");
+            server.serve();
+            return;
+        }
         bank.runConsole();
+        if (http != null) http.close();
+        bank.close();
+    }
+
+    /*
+     * router [port] --shards host:port,... --coordinator-log file
+     * cluster shards [port] [--data dir]: also starts the shards, as "serve" processes
+     * on the next ports, each journaling into the data directory
+     */
+    static void runRouter(String[] args) throws IOException, InterruptedException {
+        boolean cluster = "cluster".equals(args[0]);
+        int shardCount = cluster ? Integer.parseInt(args[1]) : 0;
+        int at = cluster ? 2 : 1;
+        int port = args.length > at && !args[at].startsWith("--") ? Integer.parseInt(args[at]) : 7070;
+        List<String> shards = new ArrayList<>();
+        List<Process> processes = new ArrayList<>();
+        Path logFile;
+        if (cluster) {
+            String data = optionValue(args, "--data");
+            Path dir = Files.createDirectories(Paths.get(data != null ? data : "bankapp-cluster"));
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            for (int i = 1; i <= shardCount; i++) {
+                processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "BankApp", "serve",
+                        String.valueOf(port + i), "--no-demo",
+                        "--journal", dir.resolve("shard-" + i + ".journal").toString(),
+                        "--snapshot", dir.resolve("shard-" + i + ".snapshot").toString())
+                        .inheritIO().start());
+                shards.add("127.0.0.1:" + (port + i));
+            }
+            logFile = dir.resolve("coordinator.log");
+            for (String s : shards) awaitListening(s);
+        } else {
+            String list = optionValue(args, "--shards");
+            if (list != null) shards.addAll(Arrays.asList(list.split(",")));
+            String log = optionValue(args, "--coordinator-log");
+            logFile = Paths.get(log != null ? log : "coordinator.log");
+        }
+        ShardRouter router = new ShardRouter(shards, new CoordinatorLog(logFile));
+        LineServer server = new LineServer(router, port);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+                router.close();
+            } catch (IOException e) {
+                System.err.println("Shutdown: " + e);
+            }
+            for (Process p : processes) p.destroy(); // the shards drain their journals on SIGTERM
+        }));
+        System.out.println("Router on " + InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.port()
+                + " (Ctrl-C to stop)\n" + router.stats());
+        server.serve();
+    }
+
+    // a freshly started shard needs a moment before it accepts connections
+    private static void awaitListening(String address) throws IOException, InterruptedException {
+        ShardClient probe = new ShardClient(address);
+        for (int attempt = 0; ; attempt++) {
+            try {
+                probe.call("stats", true);
+                probe.close();
+                return;
+            } catch (IOException e) {
+                if (attempt == 300) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    // --pipeline [--ring-size slots], or null to run operations on the calling threads
+    static LedgerPipeline ledgerPipeline(Bank bank, String[] args) {
+        if (!Arrays.asList(args).contains("--pipeline")) return null;
+        String size = optionValue(args, "--ring-size");
+        return new LedgerPipeline(bank, size == null ? LedgerPipeline.DEFAULT_SIZE : Integer.parseInt(size));
+    }
+
+    // --off-heap, --tiered capacity [--page-file file], or the plain heap store
+    static AccountStore accountStore(String[] args) throws IOException {
+        if (Arrays.asList(args).contains("--off-heap")) return new OffHeapAccountStore();
+        String capacity = optionValue(args, "--tiered");
+        if (capacity == null) return new HeapAccountStore();
+        String pageFile = optionValue(args, "--page-file");
+        Path file = pageFile != null ? Paths.get(pageFile) : Files.createTempFile("bankapp", ".pages");
+        return new TieredAccountStore(Integer.parseInt(capacity), file);
+    }
+
+    // value following a "--name" option, or null when absent
+    static String optionValue(String[] args, String name) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (name.equals(args[i])) return args[i + 1];
+        }
+        return null;
     }
 }
 
@@ -23,47 +247,213 @@ public class BankApp {
    Domain classes (OOP design)
    ----------------------------- */
 
+/*
+ * Accounts guard their own state with their monitor, so different accounts can be
+ * updated from different threads at the same time. Anything touching two accounts
+ * (see Bank.transfer) must take the locks itself.
+ */
 abstract class Account {
-    private static long nextId = 1001;
     private final long id;
     private final String ownerName;
-    protected double balance;
-    private final List<Transaction> transactions = new ArrayList<>();
+    protected long balance; // minor units (cents), see Money
+    private final TransactionLog transactions = new TransactionLog();
+    private Journal journal; // set once the account is registered with a journaled Bank
+    private long version;    // number of changes so far; lets replay skip what a snapshot already has
+    protected BillingCalendar calendar; // the owning bank's month counter; null for a standalone account
+    private AccountStore store; // set when the store must hear of every change (see bindStore)
+    private boolean keepsHistory = true; // off-heap views keep none
+
+    public Account(String ownerName, long initialDeposit) {
+        this.id = AccountIds.next();
+        this.ownerName = ownerName;
+        openWith(initialDeposit);
+    }
 
-    public Account(String ownerName, double initialDeposit) {
-        this.id = nextId++;
+    // used by journal replay: the id is already taken, the history is replayed afterwards
+    protected Account(long id, String ownerName) {
+        this.id = id;
         this.ownerName = ownerName;
-        this.balance = Math.max(0.0, initialDeposit);
+        AccountIds.reserveBelow(id + 1);
+    }
+
+    // a new account whose id was chosen elsewhere (by a ShardRouter)
+    protected Account(long id, String ownerName, long initialDeposit) {
+        this(id, ownerName);
+        openWith(initialDeposit);
+    }
+
+    private void openWith(long initialDeposit) {
+        this.balance = Math.max(0, initialDeposit);
         if (initialDeposit > 0) {
-            transactions.add(new Transaction("INITIAL_DEPOSIT", initialDeposit, "Initial deposit"));
+            transactions.add(LedgerClock.now(), Transaction.INITIAL_DEPOSIT, initialDeposit, "Initial deposit");
+            version++;
         }
     }
 
     public long getId() { return id; }
     public String getOwnerName() { return ownerName; }
-    public double getBalance() { return balance; }
+    public synchronized long getBalance() {
+        settle();
+        return balance;
+    }
 
     // deposit common behavior
-    public void deposit(double amount) {
+    public synchronized void deposit(long amount) {
+        credit(amount, Transaction.DEPOSIT, "Deposit to account");
+    }
+
+    public synchronized void withdraw(long amount) {
+        debit(amount, Transaction.WITHDRAW, "Withdrawal from account");
+    }
+
+    // credit/debit are the only places the balance moves; callers must hold this account's lock
+    protected void credit(long amount, byte type, String note) {
         if (amount <= 0) throw new IllegalArgumentException("Deposit amount must be positive.");
-        balance += amount;
-        transactions.add(new Transaction("DEPOSIT", amount, "Deposit to account"));
+        settle();
+        post(type, amount, note);
     }
 
-    // withdraw: concrete classes may override to add fees or rules
-    public void withdraw(double amount) {
+    // concrete classes may override to add fees or rules
+    protected void debit(long amount, byte type, String note) {
         if (amount <= 0) throw new IllegalArgumentException("Withdrawal amount must be positive.");
-        if (amount > balance) throw new IllegalArgumentException("Insufficient funds.");
-        balance -= amount;
-        transactions.add(new Transaction("WITHDRAW", -amount, "Withdrawal from account"));
+        settle();
+        if (amount > balance) throw new InsufficientFundsException("Insufficient funds.");
+        post(type, -amount, note);
+    }
+
+    // applies a signed amount, records it and writes it to the journal
+    protected void post(byte type, long amount, String note) {
+        post(type, amount, note, LedgerClock.now());
+    }
+
+    protected void post(byte type, long amount, String note, long at) {
+        balance = Math.addExact(balance, amount);
+        if (keepsHistory) transactions.add(at, type, amount, note);
+        version++;
+        if (store != null) store.written(this);
+        if (journal != null) journal.logPost(this, at, type, amount, note);
+    }
+
+    // for state changes that do not create a transaction (e.g. counter resets)
+    protected void logState() {
+        version++;
+        if (store != null) store.written(this);
+        if (journal != null) journal.logState(this);
+    }
+
+    // records written between these two calls reach the journal as one atomic frame
+    protected void beginJournalGroup() {
+        if (journal != null) journal.begin();
+    }
+
+    protected void endJournalGroup() {
+        if (journal != null) journal.end();
+    }
+
+    // subclass state (counters...) that must survive a restart along with the balance
+    protected long auxState() { return 0; }
+    protected void restoreAuxState(long aux) { }
+
+    /*
+     * Brings period-based state (interest, counters) up to date with the calendar.
+     * Called under the lock before every read or write, so month-end never has to
+     * visit an account. Default: nothing to catch up on.
+     */
+    protected void settle() { }
+
+    // a new account starts in the calendar's current period
+    synchronized void attachCalendar(BillingCalendar c) {
+        calendar = c;
+        startPeriod(c.current());
     }
 
-    public void addTransaction(String type, double amount, String note) {
-        transactions.add(new Transaction(type, amount, note));
+    // a restored account keeps the period marks it was journaled with
+    synchronized void setCalendar(BillingCalendar c) {
+        calendar = c;
     }
 
+    protected void startPeriod(int period) { }
+
+    // read-only view of the history so far; other threads can keep posting meanwhile
     public List<Transaction> getTransactions() {
-        return Collections.unmodifiableList(transactions);
+        return history().asList();
+    }
+
+    // transactions with from <= timestamp < to, oldest first; type is a name such as
+    // "DEPOSIT", or null for all; start with cursor 0 and continue with getNextCursor()
+    public TransactionPage findTransactions(LocalDateTime from, LocalDateTime to, String type, long cursor, int limit) {
+        byte code = type == null ? -1 : Transaction.typeCode(type);
+        return history().range(Transaction.toEpochNanos(from), Transaction.toEpochNanos(to), code, cursor, limit);
+    }
+
+    // balance right after the last transaction stamped at or before the given time;
+    // reads a frozen view of the log, so postings can continue meanwhile
+    public long balanceAt(LocalDateTime time) {
+        return history().balanceAt(Transaction.toEpochNanos(time));
+    }
+
+    // settled, read-only history as of now; every history query goes through here
+    synchronized TransactionLog history() {
+        if (!keepsHistory) {
+            throw new UnsupportedOperationException("Account " + id + " keeps no transaction history in this store"
+                    + " (--off-heap); the journal is the record of its postings.");
+        }
+        settle();
+        return transactions.frozen();
+    }
+
+    // history exactly as stored, without settling first (snapshots must not change the account)
+    synchronized TransactionLog historySnapshot() {
+        return transactions.frozen();
+    }
+
+    /* Journal hooks */
+
+    // registers with a journal and writes the account's creation plus its history so far
+    synchronized void attachJournal(Journal j) {
+        journal = j;
+        j.begin();
+        try {
+            j.logCreate(this);
+            for (int i = 0; i < transactions.size(); i++) {
+                j.logPost(this, transactions.timeAt(i), transactions.typeAt(i), transactions.amountAt(i), transactions.noteAt(i));
+            }
+        } finally {
+            j.end();
+        }
+    }
+
+    // registers an account that was rebuilt from the journal, without logging it again
+    synchronized void setJournal(Journal j) {
+        journal = j;
+    }
+
+    // from now on every change is also reported to the store (see AccountStore.written)
+    synchronized void bindStore(AccountStore s) {
+        store = s;
+        keepsHistory = s.keepsHistory();
+    }
+
+    long getVersion() { return version; }
+
+    // replay ignores records at or below the current version (already in the snapshot)
+    synchronized void replayPost(long at, byte type, long amount, String note, long balanceAfter, long aux, long version) {
+        if (version <= this.version) return;
+        if (keepsHistory) transactions.add(at, type, amount, note);
+        replayState(balanceAfter, aux, version);
+    }
+
+    synchronized void replayState(long balance, long aux, long version) {
+        if (version < this.version) return;
+        this.balance = balance;
+        this.version = version;
+        restoreAuxState(aux);
+        if (store != null) store.written(this);
+    }
+
+    // restores one history entry of an account loaded from a snapshot
+    synchronized void restoreEntry(long at, byte type, long amount, String note) {
+        transactions.add(at, type, amount, note);
     }
 
     // Each account can have its own monthly update (interest, fees...)
@@ -71,280 +461,5212 @@ abstract class Account {
 
     @Override
     public String toString() {
-        return String.format("[%d] %s - Owner: %s, Balance: %.2f", getId(), getAccountType(), getOwnerName(), getBalance());
+        return String.format("[%d] %s - Owner: %s, Balance: %s", getId(), getAccountType(), getOwnerName(), Money.format(getBalance()));
     }
 
     public abstract String getAccountType();
 }
 
 class SavingsAccount extends Account {
-    private double annualInterestRate; // e.g., 0.03 for 3%
+    private long annualRatePpm; // parts per million, e.g., 30000 for 3%
+    private int accruedThrough; // last billing period whose interest is in the balance
 
-    public SavingsAccount(String ownerName, double initialDeposit, double annualInterestRate) {
+    public SavingsAccount(String ownerName, long initialDeposit, double annualInterestRate) {
         super(ownerName, initialDeposit);
-        this.annualInterestRate = Math.max(0.0, annualInterestRate);
+        this.annualRatePpm = Math.max(0, Money.rateToPpm(annualInterestRate));
+    }
+
+    SavingsAccount(long id, String ownerName, long annualRatePpm) {
+        super(id, ownerName);
+        this.annualRatePpm = annualRatePpm;
     }
 
+    SavingsAccount(long id, String ownerName, long initialDeposit, double annualInterestRate) {
+        super(id, ownerName, initialDeposit);
+        this.annualRatePpm = Math.max(0, Money.rateToPpm(annualInterestRate));
+    }
+
+    public long getAnnualRatePpm() { return annualRatePpm; }
+
     @Override
-    public void monthlyUpdate() {
-        // monthly interest
-        double monthlyRate = annualInterestRate / 12.0;
-        double interest = getBalance() * monthlyRate;
-        if (interest > 0) {
-            balanceAdd(interest);
-            addTransaction("INTEREST", interest, "Monthly interest");
+    public synchronized void monthlyUpdate() {
+        if (calendar == null) {
+            applyInterest(LedgerClock.now()); // standalone account: one month per call
+        } else {
+            settle();
+        }
+    }
+
+    /*
+     * Applies interest for every month-end since the last one this account saw, one
+     * month at a time. Nothing else touched the balance in between (any access settles
+     * first), so the result is the same as running each month-end when it happened.
+     */
+    @Override
+    protected void settle() {
+        if (calendar == null) return;
+        int current = calendar.current();
+        while (accruedThrough < current) {
+            accruedThrough++; // before posting, so the journal records the new mark
+            applyInterest(calendar.startOf(accruedThrough));
         }
     }
 
-    // helper to update balance even though balance is protected
-    private void balanceAdd(double amount) {
-        // directly modify protected field
-        this.balance += amount;
+    // monthly interest, rounded half-even to the cent
+    private void applyInterest(long at) {
+        long interest = Money.monthlyInterest(balance, annualRatePpm);
+        if (interest > 0) {
+            post(Transaction.INTEREST, interest, "Monthly interest", at);
+        }
     }
 
+    @Override
+    protected void startPeriod(int period) { accruedThrough = period; }
+
+    @Override
+    protected long auxState() { return accruedThrough; }
+
+    @Override
+    protected void restoreAuxState(long aux) { accruedThrough = (int) aux; }
+
     @Override
     public String getAccountType() { return "Savings"; }
 }
 
 class CheckingAccount extends Account {
     private int freeWithdrawalsPerMonth;
-    private double withdrawalFee; // fee after free withdrawals
+    private long withdrawalFee; // fee after free withdrawals, in cents
     private int withdrawalsThisMonth = 0;
+    private int counterPeriod; // billing period withdrawalsThisMonth belongs to
 
-    public CheckingAccount(String ownerName, double initialDeposit, int freeWithdrawalsPerMonth, double withdrawalFee) {
+    public CheckingAccount(String ownerName, long initialDeposit, int freeWithdrawalsPerMonth, long withdrawalFee) {
         super(ownerName, initialDeposit);
         this.freeWithdrawalsPerMonth = Math.max(0, freeWithdrawalsPerMonth);
-        this.withdrawalFee = Math.max(0.0, withdrawalFee);
+        this.withdrawalFee = Math.max(0, withdrawalFee);
+    }
+
+    CheckingAccount(long id, String ownerName, int freeWithdrawalsPerMonth, long withdrawalFee) {
+        super(id, ownerName);
+        this.freeWithdrawalsPerMonth = freeWithdrawalsPerMonth;
+        this.withdrawalFee = withdrawalFee;
+    }
+
+    CheckingAccount(long id, String ownerName, long initialDeposit, int freeWithdrawalsPerMonth, long withdrawalFee) {
+        super(id, ownerName, initialDeposit);
+        this.freeWithdrawalsPerMonth = Math.max(0, freeWithdrawalsPerMonth);
+        this.withdrawalFee = Math.max(0, withdrawalFee);
+    }
+
+    public int getFreeWithdrawalsPerMonth() { return freeWithdrawalsPerMonth; }
+    public long getWithdrawalFee() { return withdrawalFee; }
+
+    @Override
+    public synchronized void withdraw(long amount) {
+        debit(amount, Transaction.WITHDRAW, "Checking withdrawal");
     }
 
+    // transfers out of a checking account count as withdrawals too
     @Override
-    public void withdraw(double amount) {
+    protected void debit(long amount, byte type, String note) {
         if (amount <= 0) throw new IllegalArgumentException("Withdrawal amount must be positive.");
-        double total = amount;
+        settle();
+        long total = amount;
         if (withdrawalsThisMonth >= freeWithdrawalsPerMonth) {
-            total += withdrawalFee;
+            total = Math.addExact(total, withdrawalFee);
         }
-        if (total > getBalance()) throw new IllegalArgumentException("Insufficient funds (including fees).");
-        // apply
-        this.balance -= total;
+        if (total > balance) throw new InsufficientFundsException("Insufficient funds (including fees).");
+        // apply; the counter goes first so the journal records it with the postings
         withdrawalsThisMonth++;
-        addTransaction("WITHDRAW", -amount, "Checking withdrawal");
-        if (total != amount) {
-            addTransaction("FEE", -withdrawalFee, "Withdrawal fee");
+        beginJournalGroup();
+        try {
+            post(type, -amount, note);
+            if (total != amount) {
+                post(Transaction.FEE, -withdrawalFee, "Withdrawal fee");
+            }
+        } finally {
+            endJournalGroup();
+        }
+    }
+
+    @Override
+    public synchronized void monthlyUpdate() {
+        if (calendar == null) {
+            withdrawalsThisMonth = 0; // standalone account: reset on every call
+        } else {
+            settle();
+        }
+    }
+
+    // the counter belongs to a billing period; the first use in a new period starts it at zero
+    @Override
+    protected void settle() {
+        if (calendar == null) return;
+        int current = calendar.current();
+        if (counterPeriod != current) {
+            counterPeriod = current;
+            withdrawalsThisMonth = 0;
         }
     }
 
     @Override
-    public void monthlyUpdate() {
-        // reset counters monthly
-        withdrawalsThisMonth = 0;
+    protected void startPeriod(int period) { counterPeriod = period; }
+
+    // period in the high half, count in the low half
+    @Override
+    protected long auxState() { return ((long) counterPeriod << 32) | (withdrawalsThisMonth & 0xFFFFFFFFL); }
+
+    @Override
+    protected void restoreAuxState(long aux) {
+        counterPeriod = (int) (aux >>> 32);
+        withdrawalsThisMonth = (int) aux;
     }
 
     @Override
     public String getAccountType() { return "Checking"; }
 }
 
-/* Simple transaction log class */
-class Transaction {
-    private final LocalDateTime timestamp;
-    private final String type;
-    private final double amount;
-    private final String note;
+/* Rejections callers may want to tell apart; both are still IllegalArgumentExceptions */
+class InsufficientFundsException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
 
-    public Transaction(String type, double amount, String note) {
-        this.timestamp = LocalDateTime.now();
-        this.type = type;
+    InsufficientFundsException(String message) { super(message); }
+}
+
+class AccountNotFoundException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    AccountNotFoundException(String message) { super(message); }
+}
+
+// one shard's side of a cross-shard transfer between prepare and commit/abort (see Bank.prepareTransfer)
+final class PreparedTransfer {
+    final long tx;
+    final boolean debit;    // source side (already debited) or destination side (not credited yet)
+    final long account;
+    final long counterparty;
+    final long amount;      // debited, fees included, or to be credited
+
+    PreparedTransfer(long tx, boolean debit, long account, long counterparty, long amount) {
+        this.tx = tx;
+        this.debit = debit;
+        this.account = account;
+        this.counterparty = counterparty;
         this.amount = amount;
-        this.note = note;
     }
+}
 
-    public String toString() {
-        DateTimeFormatter fmt = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-        return String.format("%s | %-12s | %8.2f | %s", timestamp.format(fmt), type, amount, note);
+/*
+ * The outcomes of the last LIMIT cross-shard transfers resolved on this shard, so a
+ * prepare that arrives again afterwards does not act twice. The router hands out
+ * transaction ids in increasing order, so the ones that fall out are the oldest, and
+ * anything at or below the highest forgotten id counts as too old to prepare.
+ */
+final class ResolvedTransfers {
+    static final int LIMIT = 1 << 16;
+
+    private final LinkedHashMap<Long, Boolean> outcomes = new LinkedHashMap<>();
+    private long forgotten; // the highest id that fell out
+
+    synchronized void add(long tx, boolean committed) {
+        if (tx <= forgotten) return;
+        outcomes.put(tx, committed);
+        if (outcomes.size() <= LIMIT) return;
+        Iterator<Map.Entry<Long, Boolean>> oldest = outcomes.entrySet().iterator();
+        forgotten = Math.max(forgotten, oldest.next().getKey());
+        oldest.remove();
     }
-}
 
-/* -----------------------------
-   Bank: manages accounts & console UI
-   ----------------------------- */
+    // true if committed, false if aborted, null if not resolved here (or forgotten)
+    synchronized Boolean outcome(long tx) { return outcomes.get(tx); }
 
-class Bank {
-    private final String name;
-    private final Map<Long, Account> accounts = new HashMap<>();
-    private final Scanner scanner = new Scanner(System.in);
+    synchronized boolean forgotten(long tx) { return tx <= forgotten; }
 
-    public Bank(String name) {
-        this.name = name;
+    // snapshot support: [forgotten][count], then [tx][committed] oldest first
+    synchronized void write(DataOutputStream out) throws IOException {
+        out.writeLong(forgotten);
+        out.writeInt(outcomes.size());
+        for (Map.Entry<Long, Boolean> e : outcomes.entrySet()) {
+            out.writeLong(e.getKey());
+            out.writeBoolean(e.getValue());
+        }
     }
 
-    // demo seed
-    public void seedDemoData() {
-        createAccountInternal(new SavingsAccount("Alice", 1000.0, 0.03));
-        createAccountInternal(new CheckingAccount("Bob", 500.0, 2, 1.0));
+    // snapshot load, before the outcomes are added back
+    synchronized void forgetThrough(long tx) { forgotten = Math.max(forgotten, tx); }
+}
+
+/*
+ * Hands out account ids in blocks. A thread reserves a block with a single atomic add
+ * and then allocates from it without touching shared state, so bulk account creation
+ * from many threads does not contend. Blocks are sized to demand: a thread's first
+ * block holds one id and each next one twice as many, up to MAX_BLOCK. Front ends
+ * that run every request on a fresh thread therefore hand out consecutive ids, and
+ * only threads that keep creating accounts hold larger blocks. Ids are unique and
+ * roughly ordered (by block); ids left over in a block when the thread or the process
+ * stops are skipped.
+ *
+ * Every reservation is reported to the listener (the bank's journal) and snapshots
+ * store the high-water mark, so ids are never reused after a restart.
+ */
+final class AccountIds {
+    static final int MAX_BLOCK = 1024;
+
+    private static final AtomicLong highWater = new AtomicLong(1001);
+    private static volatile int generation; // bumped on restore so blocks taken earlier are dropped
+    private static volatile LongConsumer listener;
+    private static final ThreadLocal<long[]> block = ThreadLocal.withInitial(() -> new long[] {0, 0, -1, 0}); // next, limit, generation, size
+
+    private AccountIds() { }
+
+    static long next() {
+        long[] b = block.get();
+        if (b[0] == b[1] || b[2] != generation) {
+            long size = Math.min(MAX_BLOCK, Math.max(1, 2 * b[3]));
+            long start = highWater.getAndAdd(size);
+            b[0] = start;
+            b[1] = start + size;
+            b[2] = generation;
+            b[3] = size;
+            LongConsumer l = listener;
+            if (l != null) l.accept(b[1]);
+        }
+        return b[0]++;
     }
 
-    // internal helper to skip printing
-    private void createAccountInternal(Account acc) {
-        accounts.put(acc.getId(), acc);
+    static long highWaterMark() {
+        return highWater.get();
     }
 
-    public void runConsole() {
-        System.out.println("Welcome to " + name + " (Console)");
-        boolean running = true;
-        while (running) {
-            printMenu();
-            System.out.print("Choose option: ");
-            String choice = scanner.nextLine().trim();
-            try {
-                switch (choice) {
-                    case "1": actionCreateAccount(); break;
-                    case "2": actionDeposit(); break;
-                    case "3": actionWithdraw(); break;
-                    case "4": actionTransfer(); break;
-                    case "5": actionShowAccounts(); break;
-                    case "6": actionShowTransactions(); break;
-                    case "7": actionMonthlyUpdate(); break;
-                    case "0": running = false; break;
-                    default: System.out.println("Invalid option, try again."); break;
-                }
-            } catch (Exception ex) {
-                System.out.println("Error: " + ex.getMessage());
+    // recovery: ids below 'next' are taken; meant for startup, before accounts are created
+    static void reserveBelow(long next) {
+        if (highWater.get() >= next) return; // the common case, e.g. an off-heap view being rebuilt
+        synchronized (AccountIds.class) {
+            if (highWater.get() < next) {
+                highWater.accumulateAndGet(next, Math::max);
+                generation++;
             }
-            System.out.println();
         }
-        System.out.println("Goodbye!");
     }
 
-    private void printMenu() {
-        System.out.println("=== Menu ===");
-        System.out.println("1) Create account");
-        System.out.println("2) Deposit");
-        System.out.println("3) Withdraw");
-        System.out.println("4) Transfer");
-        System.out.println("5) Show accounts");
-        System.out.println("6) Show transactions for an account");
-        System.out.println("7) Monthly update (interest/fees reset)");
-        System.out.println("0) Exit");
+    static void setListener(LongConsumer l) {
+        listener = l;
     }
+}
 
-    private void actionCreateAccount() {
-        System.out.print("Owner name: ");
-        String owner = scanner.nextLine().trim();
-        if (owner.isEmpty()) { System.out.println("Owner name cannot be empty."); return; }
-
-        System.out.println("Account type: 1) Savings  2) Checking");
-        String type = scanner.nextLine().trim();
-        System.out.print("Initial deposit: ");
-        double initial = parseDoubleInput(scanner.nextLine());
+/*
+ * Time source for transaction timestamps, in epoch nanos. Timestamps stay primitive
+ * longs everywhere and become LocalDateTime only when shown (Transaction.toLocal).
+ * The installed clock is global, like account ids; tests install a ManualClock.
+ */
+abstract class LedgerClock {
+    private static volatile LedgerClock installed = new MonotonicClock();
 
-        Account acc;
-        if ("1".equals(type)) {
-            System.out.print("Annual interest rate (e.g., 0.03 for 3%): ");
-            double rate = parseDoubleInput(scanner.nextLine());
-            acc = new SavingsAccount(owner, initial, rate);
-        } else {
-            System.out.print("Free withdrawals per month (e.g., 2): ");
-            int free = parseIntInput(scanner.nextLine());
-            System.out.print("Withdrawal fee after free withdrawals (e.g., 1.0): ");
-            double fee = parseDoubleInput(scanner.nextLine());
-            acc = new CheckingAccount(owner, initial, free, fee);
-        }
-        accounts.put(acc.getId(), acc);
-        System.out.println("Account created: " + acc);
+    static long now() {
+        return installed.epochNanos();
     }
 
-    private void actionDeposit() {
-        Account acc = askForAccount("Enter account id to deposit into: ");
-        if (acc == null) return;
-        System.out.print("Amount to deposit: ");
-        double amt = parseDoubleInput(scanner.nextLine());
-        acc.deposit(amt);
-        System.out.printf("Deposited %.2f into account %d. New balance: %.2f\n", amt, acc.getId(), acc.getBalance());
+    static void install(LedgerClock clock) {
+        installed = clock;
     }
 
-    private void actionWithdraw() {
-        Account acc = askForAccount("Enter account id to withdraw from: ");
-        if (acc == null) return;
-        System.out.print("Amount to withdraw: ");
-        double amt = parseDoubleInput(scanner.nextLine());
-        acc.withdraw(amt);
-        System.out.printf("Withdrawn %.2f from account %d. New balance: %.2f\n", amt, acc.getId(), acc.getBalance());
-    }
+    abstract long epochNanos();
+}
 
-    private void actionTransfer() {
-        Account from = askForAccount("From account id: ");
-        if (from == null) return;
-        Account to = askForAccount("To account id: ");
-        if (to == null) return;
-        System.out.print("Amount to transfer: ");
-        double amt = parseDoubleInput(scanner.nextLine());
-        // basic transfer with simple validation
-        if (amt <= 0) { System.out.println("Amount must be positive."); return; }
-        if (amt > from.getBalance()) { System.out.println("Insufficient funds."); return; }
+/*
+ * Reads the wall clock once and then only System.nanoTime(): no time-zone lookup, no
+ * allocation, and it never goes backwards when the wall clock is adjusted. The price
+ * is that it does not follow later wall-clock corrections while the process runs.
+ */
+class MonotonicClock extends LedgerClock {
+    private final long anchorEpochNanos;
+    private final long anchorNanoTime;
 
-        from.withdraw(amt); // this will apply fees if checking
-        to.deposit(amt);
-        from.addTransaction("TRANSFER_OUT", -amt, "Transfer to account " + to.getId());
-        to.addTransaction("TRANSFER_IN", amt, "Transfer from account " + from.getId());
-        System.out.printf("Transferred %.2f from %d to %d.\n", amt, from.getId(), to.getId());
+    MonotonicClock() {
+        Instant now = Instant.now();
+        this.anchorNanoTime = System.nanoTime();
+        this.anchorEpochNanos = now.getEpochSecond() * 1_000_000_000L + now.getNano();
     }
 
-    private void actionShowAccounts() {
-        if (accounts.isEmpty()) {
-            System.out.println("No accounts available.");
-            return;
-        }
-        System.out.println("Accounts:");
-        for (Account a : accounts.values()) {
-            System.out.println(a);
-        }
+    @Override
+    long epochNanos() {
+        return anchorEpochNanos + (System.nanoTime() - anchorNanoTime);
     }
+}
 
-    private void actionShowTransactions() {
-        Account acc = askForAccount("Enter account id to view transactions: ");
-        if (acc == null) return;
-        System.out.println("Transactions for account " + acc.getId() + ":");
-        for (Transaction t : acc.getTransactions()) {
-            System.out.println(t);
-        }
-        System.out.printf("Current balance: %.2f\n", acc.getBalance());
+/* Deterministic clock for tests: starts at a fixed instant and moves a fixed step per reading. */
+class ManualClock extends LedgerClock {
+    private final AtomicLong current;
+    private final long stepNanos;
+
+    ManualClock(long startEpochNanos, long stepNanos) {
+        this.current = new AtomicLong(startEpochNanos);
+        this.stepNanos = stepNanos;
     }
 
-    private void actionMonthlyUpdate() {
+    @Override
+    long epochNanos() {
+        return current.getAndAdd(stepNanos);
+    }
+
+    void advance(long nanos) {
+        current.addAndGet(nanos);
+    }
+}
+
+/* Simple transaction class: a read-only entry materialized from an account's TransactionLog */
+class Transaction {
+    static final byte INITIAL_DEPOSIT = 0;
+    static final byte DEPOSIT = 1;
+    static final byte WITHDRAW = 2;
+    static final byte TRANSFER_OUT = 3;
+    static final byte TRANSFER_IN = 4;
+    static final byte FEE = 5;
+    static final byte INTEREST = 6;
+    private static final String[] TYPE_NAMES = {
+        "INITIAL_DEPOSIT", "DEPOSIT", "WITHDRAW", "TRANSFER_OUT", "TRANSFER_IN", "FEE", "INTEREST"
+    };
+
+    private final LocalDateTime timestamp;
+    private final String type;
+    private final long amount; // cents
+    private final String note;
+
+    static String typeName(byte code) { return TYPE_NAMES[code]; }
+
+    static byte typeCode(String name) {
+        for (byte code = 0; code < TYPE_NAMES.length; code++) {
+            if (TYPE_NAMES[code].equals(name)) return code;
+        }
+        throw new IllegalArgumentException("Unknown transaction type: " + name);
+    }
+
+    static LocalDateTime toLocal(long epochNanos) {
+        return LocalDateTime.ofInstant(Instant.ofEpochSecond(0, epochNanos), ZoneId.systemDefault());
+    }
+
+    // saturates outside the range a long of nanos can hold (about 1677 to 2262)
+    static long toEpochNanos(LocalDateTime time) {
+        Instant instant = time.atZone(ZoneId.systemDefault()).toInstant();
+        long seconds = instant.getEpochSecond();
+        if (seconds >= Long.MAX_VALUE / 1_000_000_000L) return Long.MAX_VALUE;
+        if (seconds <= Long.MIN_VALUE / 1_000_000_000L) return Long.MIN_VALUE;
+        return seconds * 1_000_000_000L + instant.getNano();
+    }
+
+    Transaction(LocalDateTime timestamp, String type, long amount, String note) {
+        this.timestamp = timestamp;
+        this.type = type;
+        this.amount = amount;
+        this.note = note;
+    }
+
+    public LocalDateTime getTimestamp() { return timestamp; }
+    public String getType() { return type; }
+    public long getAmount() { return amount; }
+    public String getNote() { return note; }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder(96);
+        StatementWriter.appendLine(sb, StatementWriter.TIMESTAMP.format(timestamp), type, amount, note);
+        return sb.toString();
+    }
+}
+
+/* One page of a history query; pass nextCursor back to get the following page */
+class TransactionPage {
+    static final long END = -1;
+
+    private final List<Transaction> items;
+    private final long nextCursor;
+
+    TransactionPage(List<Transaction> items, long nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Transaction> getItems() { return items; }
+    public long getNextCursor() { return nextCursor; }
+    public boolean hasMore() { return nextCursor != END; }
+}
+
+/*
+ * Money is a plain long of minor units (cents), so hot-path arithmetic is exact integer
+ * math and allocates nothing. This class holds the conversions and rounding rules:
+ * input is parsed exactly (more than two decimals is an error, not a rounding), and
+ * interest is rounded half-even to the cent.
+ */
+final class Money {
+    static final long PPM = 1_000_000; // interest rates are kept in parts per million
+
+    private Money() { }
+
+    // "12", "12.3", "-0.05" -> cents
+    static long parse(String s) {
+        try {
+            return parseCents(s);
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Invalid amount: " + s + " (too large)");
+        }
+    }
+
+    private static long parseCents(String s) {
+        String t = s.trim();
+        int i = 0;
+        boolean negative = false;
+        if (!t.isEmpty() && (t.charAt(0) == '-' || t.charAt(0) == '+')) {
+            negative = t.charAt(0) == '-';
+            i = 1;
+        }
+        long units = 0;
+        int digits = 0;
+        while (i < t.length() && t.charAt(i) != '.') {
+            units = Math.addExact(Math.multiplyExact(units, 10), digit(t, i++));
+            digits++;
+        }
+        long cents = 0;
+        int decimals = 0;
+        if (i < t.length()) {
+            for (i++; i < t.length(); i++) {
+                if (++decimals > 2) throw new NumberFormatException("At most 2 decimal places: " + s);
+                cents = cents * 10 + digit(t, i);
+            }
+        }
+        if (digits == 0 && decimals == 0) throw new NumberFormatException("Invalid amount: " + s);
+        if (decimals == 1) cents *= 10;
+        long total = Math.addExact(Math.multiplyExact(units, 100), cents);
+        return negative ? -total : total;
+    }
+
+    private static int digit(String s, int i) {
+        char c = s.charAt(i);
+        if (c < '0' || c > '9') throw new NumberFormatException("Invalid amount: " + s);
+        return c - '0';
+    }
+
+    static long rateToPpm(double rate) {
+        return Math.round(rate * PPM);
+    }
+
+    static String format(long cents) {
+        StringBuilder sb = new StringBuilder(24);
+        appendTo(sb, cents);
+        return sb.toString();
+    }
+
+    // e.g. -123405 -> "-1234.05", without going through String.format
+    static void appendTo(StringBuilder sb, long cents) {
+        if (cents == Long.MIN_VALUE) {
+            sb.append("-92233720368547758.08");
+            return;
+        }
+        if (cents < 0) {
+            sb.append('-');
+            cents = -cents;
+        }
+        long fraction = cents % 100;
+        sb.append(cents / 100).append('.');
+        if (fraction < 10) sb.append('0');
+        sb.append(fraction);
+    }
+
+    static long monthlyInterest(long balance, long annualRatePpm) {
+        return mulDivHalfEven(balance, annualRatePpm, 12 * PPM);
+    }
+
+    // a * b / divisor (divisor > 0), rounded half-even, exact for any long inputs
+    static long mulDivHalfEven(long a, long b, long divisor) {
+        long hi = Math.multiplyHigh(a, b);
+        long lo = a * b;
+        if ((hi == 0 && lo >= 0) || (hi == -1 && lo < 0)) {
+            long q = lo / divisor;
+            long r = lo % divisor;
+            if (r == 0) return q;
+            long twice = Math.abs(r) * 2;
+            if (twice > divisor || (twice == divisor && (q & 1) != 0)) {
+                return r < 0 ? q - 1 : q + 1;
+            }
+            return q;
+        }
+        // the product needs more than 64 bits: rare enough that allocating is fine
+        return new BigDecimal(BigInteger.valueOf(a).multiply(BigInteger.valueOf(b)))
+                .divide(BigDecimal.valueOf(divisor), 0, RoundingMode.HALF_EVEN)
+                .longValueExact();
+    }
+}
+
+/*
+ * Column-oriented transaction history: one primitive array per field instead of one
+ * object per transaction. An entry costs 25 bytes (time, type code, amount in cents,
+ * note reference) plus the shared note text, against well over 100 bytes for a Transaction
+ * with its LocalDateTime and strings. Transaction objects are only created when a
+ * caller looks at an entry.
+ *
+ * Appends happen under the owning account's lock. frozen() captures the arrays and the
+ * current size; appends only ever write past that size (or into new arrays), so a frozen
+ * log can be read from any thread without locking.
+ */
+class TransactionLog {
+    private long[] times;   // epoch nanos
+    private byte[] types;   // Transaction type codes
+    private long[] amounts; // minor units (cents)
+    private long[] notes;   // references into the shared note table
+    private int size;
+    // running balance after every CHECKPOINT_INTERVAL entries: checkpoints[j] is the sum
+    // of amounts[0 .. (j + 1) * CHECKPOINT_INTERVAL - 1]
+    private long[] checkpoints;
+    private long total;
+
+    private static final int CHECKPOINT_INTERVAL = 64;
+
+    TransactionLog() {
+        this(new long[4], new byte[4], new long[4], new long[4], 0, new long[4], 0);
+    }
+
+    private TransactionLog(long[] times, byte[] types, long[] amounts, long[] notes, int size,
+                           long[] checkpoints, long total) {
+        this.times = times;
+        this.types = types;
+        this.amounts = amounts;
+        this.notes = notes;
+        this.size = size;
+        this.checkpoints = checkpoints;
+        this.total = total;
+    }
+
+    // entries stay in time order, which is what makes range queries a binary search;
+    // one stamped before its predecessor (interest dated to a period start that raced
+    // with a posting) is filed at the predecessor's time
+    void add(long time, byte type, long amount, String note) {
+        if (size > 0 && time < times[size - 1]) time = times[size - 1];
+        if (size == times.length) {
+            int capacity = size * 2;
+            times = Arrays.copyOf(times, capacity);
+            types = Arrays.copyOf(types, capacity);
+            amounts = Arrays.copyOf(amounts, capacity);
+            notes = Arrays.copyOf(notes, capacity);
+        }
+        times[size] = time;
+        types[size] = type;
+        amounts[size] = amount;
+        notes[size] = NoteTable.intern(note);
+        size++;
+        total += amount;
+        if (size % CHECKPOINT_INTERVAL == 0) {
+            int j = size / CHECKPOINT_INTERVAL - 1;
+            if (j == checkpoints.length) checkpoints = Arrays.copyOf(checkpoints, j * 2);
+            checkpoints[j] = total;
+        }
+    }
+
+    int size() { return size; }
+    long timeAt(int i) { return times[i]; }
+    byte typeAt(int i) { return types[i]; }
+    long amountAt(int i) { return amounts[i]; }
+    String noteAt(int i) { return NoteTable.get(notes[i]); }
+
+    Transaction get(int i) {
+        return new Transaction(Transaction.toLocal(times[i]), Transaction.typeName(types[i]),
+                amounts[i], NoteTable.get(notes[i]));
+    }
+
+    // first index whose time is >= time, or size
+    int lowerBound(long time) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] < time) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // entries with from <= time < to (and of the given type, or any type if type < 0),
+    // starting at index cursor; the cursor is an index, which stays valid because
+    // entries are never removed. from > to is an empty range, not an error.
+    TransactionPage range(long from, long to, byte type, long cursor, int limit) {
+        if (limit <= 0) throw new IllegalArgumentException("Page size must be positive.");
+        if (cursor < 0) throw new IllegalArgumentException("Invalid cursor.");
+        int end = lowerBound(to);
+        int i = (int) Math.max(lowerBound(from), Math.min(cursor, end));
+        List<Transaction> items = new ArrayList<>(Math.max(0, Math.min(limit, end - i)));
+        for (; i < end && items.size() < limit; i++) {
+            if (type < 0 || types[i] == type) items.add(get(i));
+        }
+        while (i < end && type >= 0 && types[i] != type) i++;
+        return new TransactionPage(items, i < end ? i : TransactionPage.END);
+    }
+
+    // sum of every entry stamped at or before time: nearest checkpoint plus at most
+    // CHECKPOINT_INTERVAL - 1 entries after it
+    long balanceAt(long time) {
+        int n = time == Long.MAX_VALUE ? size : lowerBound(time + 1);
+        int j = n / CHECKPOINT_INTERVAL;
+        long balance = j == 0 ? 0 : checkpoints[j - 1];
+        for (int i = j * CHECKPOINT_INTERVAL; i < n; i++) balance += amounts[i];
+        return balance;
+    }
+
+    // read-only copy sharing the arrays, fixed at the current size
+    TransactionLog frozen() {
+        return new TransactionLog(times, types, amounts, notes, size, checkpoints, total);
+    }
+
+    // list view of a frozen log
+    List<Transaction> asList() {
+        return new AbstractList<Transaction>() {
+            @Override
+            public Transaction get(int i) {
+                Objects.checkIndex(i, size);
+                return TransactionLog.this.get(i);
+            }
+
+            @Override
+            public int size() { return size; }
+        };
+    }
+}
+
+/*
+ * Billing periods of one bank. Month-end only opens the next period; accounts catch up
+ * on their own (see Account.settle). Period p started at startOf(p), which is also the
+ * timestamp given to interest for the month that ended there.
+ */
+class BillingCalendar {
+    private volatile long[] starts = new long[16];
+    private volatile int period;
+
+    int current() { return period; }
+
+    long startOf(int p) { return starts[p]; }
+
+    synchronized int advance(long at) {
+        restore(period + 1, at);
+        return period;
+    }
+
+    // journal replay / snapshot load; periods only move forward
+    synchronized void restore(int p, long at) {
+        if (p <= period) return;
+        long[] current = starts;
+        if (p >= current.length) current = Arrays.copyOf(current, Math.max(current.length * 2, p + 1));
+        current[p] = at;
+        starts = current;
+        period = p; // volatile write last: readers that see the period also see its start
+    }
+}
+
+/*
+ * Interned transaction notes, shared by all accounts ("Deposit to account", ...). A note
+ * with a number in it ("Transfer to account 1042") is kept as a template with the number
+ * cut out, and the number travels in the reference, so the table grows with the kinds
+ * of notes rather than with the number of accounts.
+ */
+class NoteTable {
+    private static final int ARG_BITS = 40; // the number + 1, or 0 for none
+    private static final int MAX_DIGITS = 12;
+    private static final char HOLE = '\0';
+
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] notes = new String[64];
+    private static int count;
+
+    static long intern(String note) {
+        int start = 0;
+        while (start < note.length() && !isDigit(note.charAt(start))) start++;
+        int end = start;
+        while (end < note.length() && isDigit(note.charAt(end))) end++;
+        // no number, one that would not round-trip (leading zero, too long), or a note
+        // that already has the hole character: keep it whole
+        if (start == end || end - start > MAX_DIGITS || (note.charAt(start) == '0' && end - start > 1)
+                || note.indexOf(HOLE) >= 0) {
+            return (long) template(note) << ARG_BITS;
+        }
+        long number = Long.parseLong(note, start, end, 10);
+        String template = note.substring(0, start) + HOLE + note.substring(end);
+        return ((long) template(template) << ARG_BITS) | (number + 1);
+    }
+
+    static String get(long ref) {
+        String template = notes[(int) (ref >>> ARG_BITS)];
+        long arg = ref & ((1L << ARG_BITS) - 1);
+        if (arg == 0) return template;
+        int hole = template.indexOf(HOLE);
+        return template.substring(0, hole) + (arg - 1) + template.substring(hole + 1);
+    }
+
+    private static boolean isDigit(char c) { return c >= '0' && c <= '9'; }
+
+    private static int template(String note) {
+        Integer id = ids.get(note);
+        if (id != null) return id;
+        synchronized (NoteTable.class) {
+            id = ids.get(note);
+            if (id != null) return id;
+            String[] current = notes;
+            if (count == current.length) current = Arrays.copyOf(current, count * 2);
+            current[count] = note;
+            notes = current; // volatile write publishes the new entry before its id escapes
+            ids.put(note, count);
+            return count++;
+        }
+    }
+}
+
+/* -----------------------------
+   AccountStore: where a bank keeps its accounts
+   ----------------------------- */
+
+/*
+ * The bank's table of accounts. HeapAccountStore keeps every Account object in a map.
+ * OffHeapAccountStore keeps only each account's core state, outside the Java heap, and
+ * hands out Account views of it, so the heap no longer grows with the number of
+ * accounts. TieredAccountStore keeps the recently used accounts in memory and pages
+ * the others out to disk. All methods are thread-safe.
+ */
+interface AccountStore {
+    // the account, or null if there is none with this id
+    Account get(long id);
+
+    // registers a new or restored account; called under the account's lock or at startup
+    void add(Account acc);
+
+    long size();
+
+    default boolean isEmpty() { return size() == 0; }
+
+    // every account, in no particular order; weakly consistent while accounts are added
+    Collection<Account> values();
+
+    // gives every account, including ones handed out later, this journal
+    void setJournal(Journal j);
+
+    // the calendar for accounts the store builds itself (views, accounts read back from disk)
+    void setCalendar(BillingCalendar calendar);
+
+    // the account's state changed; called under its lock by accounts bound with Account.bindStore
+    void written(Account acc);
+
+    // false if accounts bound to this store should not record their transactions
+    default boolean keepsHistory() { return true; }
+
+    // how the bank looks accounts up by owner; by default an index on the heap
+    default OwnerIndex ownerIndex() { return new SortedOwnerIndex(); }
+
+    // writes every account as a snapshot record and returns how many it wrote
+    default int writeSnapshot(DataOutputStream out) throws IOException {
+        int count = 0;
+        for (Account a : values()) {
+            Snapshot.writeAccount(out, a);
+            count++;
+        }
+        return count;
+    }
+}
+
+class HeapAccountStore implements AccountStore {
+    private final Map<Long, Account> accounts = new ConcurrentHashMap<>();
+
+    public Account get(long id) { return accounts.get(id); }
+    public void add(Account acc) { accounts.put(acc.getId(), acc); }
+    public long size() { return accounts.size(); }
+    public Collection<Account> values() { return Collections.unmodifiableCollection(accounts.values()); }
+
+    public void setJournal(Journal j) {
+        for (Account a : accounts.values()) a.setJournal(j);
+    }
+
+    public void setCalendar(BillingCalendar calendar) { } // the bank sets it on every account it adds
+
+    public void written(Account acc) { } // the Account object is the only copy
+}
+
+/*
+ * Core account state in fixed-width slots of direct ByteBuffers, one slot per account
+ * in the order they were added:
+ *
+ *   [id][type][free withdrawals][rate or fee][balance][aux][version][owner ref]   64 bytes
+ *
+ * Ids are sparse (every thread reserves its own block, see AccountIds), so they are
+ * not used as slot numbers. An open-addressing table in direct memory maps them to
+ * slots instead: 4 bytes per entry, kept at most half full, and the key is the id in
+ * the slot itself.
+ *
+ * Owner names are appended to separate name buffers; the slot keeps a reference to
+ * them. get() builds an Account view from the slot, and the view writes every change
+ * straight back (Account.post calls written()). While anyone still holds a view, get()
+ * returns that same object, so its monitor keeps guarding the account exactly as with
+ * heap accounts; once it is unreachable the GC reclaims it and the next get() builds a
+ * fresh one. Views keep no transaction history: in this mode the journal is the record,
+ * and history queries (statements, balance-as-of, transaction pages) are refused. The
+ * bank keeps no owner index either (see OwnerScan): an owner lookup reads the names
+ * here, so the heap does not grow with the number of accounts.
+ *
+ * The version is written last with release semantics and read first with acquire, so a
+ * view built on another thread sees everything the previous view wrote.
+ */
+class OffHeapAccountStore implements AccountStore {
+    private static final int SLOT_SIZE = 64;
+    private static final int SLOTS_BITS = 16; // 64K slots (4 MB) per chunk
+    private static final int NAME_CHUNK_SIZE = 1 << 20;
+
+    private static final int ID = 0;
+    private static final int TYPE = 8;
+    private static final int FREE = 12;
+    private static final int PARAM = 16;
+    private static final int BALANCE = 24;
+    private static final int AUX = 32;
+    private static final int VERSION = 40;
+    private static final int OWNER = 48; // name chunk index in the high half, offset in the low half
+
+    private static final int INITIAL_INDEX = 1 << 16;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private volatile BillingCalendar calendar;
+    private volatile Journal journal;
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0]; // replaced (copied) when it grows
+    private volatile ByteBuffer[] names = new ByteBuffer[0];  // likewise; appended to under this
+    private volatile ByteBuffer index = ByteBuffer.allocateDirect(INITIAL_INDEX * 4); // slot + 1 per entry, 0 = free
+    private final AtomicLong count = new AtomicLong(); // slots in use; slots are only added under this
+    private final Map<Long, ViewRef> views = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Account> collected = new ReferenceQueue<>();
+
+    // a view, weakly held; remembers its id so the map entry can go once the view is collected
+    private static final class ViewRef extends WeakReference<Account> {
+        final long id;
+
+        ViewRef(Account acc, ReferenceQueue<Account> queue) {
+            super(acc, queue);
+            this.id = acc.getId();
+        }
+    }
+
+    public Account get(long id) {
+        long slot = slotOf(id);
+        if (slot < 0) return null;
+        ByteBuffer chunk = chunk(slot);
+        purge();
+        ViewRef ref = views.get(id);
+        Account acc = ref == null ? null : ref.get();
+        if (acc != null) return acc;
+        Account[] view = new Account[1];
+        views.compute(id, (k, r) -> {
+            Account a = r == null ? null : r.get();
+            if (a == null) {
+                a = load(chunk, offset(slot), id);
+                r = new ViewRef(a, collected);
+            }
+            view[0] = a;
+            return r;
+        });
+        return view[0];
+    }
+
+    public void add(Account acc) {
+        long id = acc.getId();
+        if (id <= 0) throw new IllegalArgumentException("Account ids are positive: " + id);
+        purge(); // bulk creation never calls get(), and would pile up dead entries otherwise
+        synchronized (this) {
+            long slot = slotOf(id);
+            boolean fresh = slot < 0;
+            if (fresh) slot = count.get();
+            ByteBuffer chunk = chunkFor(slot);
+            int off = offset(slot);
+            chunk.put(off + TYPE, Journal.typeCode(acc))
+                    .putInt(off + FREE, Journal.freeWithdrawals(acc))
+                    .putLong(off + PARAM, Journal.typeParam(acc))
+                    .putLong(off + OWNER, appendName(acc.getOwnerName()))
+                    .putLong(off + BALANCE, acc.balance)
+                    .putLong(off + AUX, acc.auxState());
+            LONGS.setRelease(chunk, off + VERSION, acc.getVersion());
+            LONGS.setRelease(chunk, off + ID, id);
+            if (fresh) {
+                insert(id, slot);
+                count.incrementAndGet();
+            }
+        }
+        views.put(id, new ViewRef(acc, collected));
+        acc.bindStore(this);
+    }
+
+    public void written(Account acc) {
+        long slot = slotOf(acc.getId());
+        ByteBuffer chunk = chunk(slot);
+        int off = offset(slot);
+        chunk.putLong(off + BALANCE, acc.balance).putLong(off + AUX, acc.auxState());
+        LONGS.setRelease(chunk, off + VERSION, acc.getVersion());
+    }
+
+    public long size() { return count.get(); }
+
+    public void setCalendar(BillingCalendar calendar) { this.calendar = calendar; }
+
+    public boolean keepsHistory() { return false; }
+
+    // walks the slots in the order the accounts were added and hands out a view of each
+    public Collection<Account> values() {
+        long used = count.get();
+        ByteBuffer[] all = chunks;
+        return new AbstractCollection<Account>() {
+            public int size() { return (int) Math.min(Integer.MAX_VALUE, used); }
+
+            public Iterator<Account> iterator() {
+                return new Iterator<Account>() {
+                    private long slot = -1;
+                    private Account next = advance();
+
+                    private Account advance() {
+                        while (++slot < used) {
+                            long id = (long) LONGS.getAcquire(all[(int) (slot >>> SLOTS_BITS)], offset(slot) + ID);
+                            Account acc = get(id);
+                            if (acc != null) return acc;
+                        }
+                        return null;
+                    }
+
+                    public boolean hasNext() { return next != null; }
+
+                    public Account next() {
+                        if (next == null) throw new NoSuchElementException();
+                        Account acc = next;
+                        next = advance();
+                        return acc;
+                    }
+                };
+            }
+        };
+    }
+
+    public OwnerIndex ownerIndex() { return new OwnerScan(this::forEachOwner); }
+
+    // reads the names straight from the name buffers, building no views
+    private void forEachOwner(OwnerScan.Visitor visitor) {
+        long used = count.get();
+        ByteBuffer[] all = chunks;
+        for (long slot = 0; slot < used; slot++) {
+            ByteBuffer chunk = all[(int) (slot >>> SLOTS_BITS)];
+            int off = offset(slot);
+            visitor.visit((long) LONGS.getAcquire(chunk, off + ID), readName(chunk.getLong(off + OWNER)));
+        }
+    }
+
+    public void setJournal(Journal j) {
+        journal = j;
+        for (ViewRef ref : views.values()) {
+            Account acc = ref.get();
+            if (acc != null) acc.setJournal(j);
+        }
+    }
+
+    // direct memory held by the slots, names and id index, in bytes
+    long offHeapBytes() {
+        return (long) chunks.length * (SLOT_SIZE << SLOTS_BITS) + (long) names.length * NAME_CHUNK_SIZE + index.capacity();
+    }
+
+    /* Id index: linear probing; entries are only ever added, so readers need no lock */
+
+    // slot of the account with this id, or -1
+    private long slotOf(long id) {
+        if (id <= 0) return -1;
+        ByteBuffer table = index;
+        int mask = table.capacity() / 4 - 1;
+        for (int i = home(id, mask); ; i = (i + 1) & mask) {
+            int entry = (int) INTS.getAcquire(table, i * 4);
+            if (entry == 0) return -1;
+            long slot = entry - 1;
+            if ((long) LONGS.getAcquire(chunk(slot), offset(slot) + ID) == id) return slot;
+        }
+    }
+
+    // under this; the slot's id is already written
+    private void insert(long id, long slot) {
+        if (slot + 1 >= Integer.MAX_VALUE) throw new IllegalStateException("Off-heap store is full.");
+        ByteBuffer table = index;
+        if ((count.get() + 1) * 2 > table.capacity() / 4) {
+            // a bigger table, filled before it is published; readers keep using the old one until then
+            ByteBuffer bigger = ByteBuffer.allocateDirect(table.capacity() * 2);
+            for (long s = 0; s < count.get(); s++) {
+                place(bigger, chunk(s).getLong(offset(s) + ID), s);
+            }
+            index = bigger;
+            table = bigger;
+        }
+        place(table, id, slot);
+    }
+
+    private static void place(ByteBuffer table, long id, long slot) {
+        int mask = table.capacity() / 4 - 1;
+        int i = home(id, mask);
+        while ((int) INTS.getAcquire(table, i * 4) != 0) i = (i + 1) & mask;
+        INTS.setRelease(table, i * 4, (int) (slot + 1));
+    }
+
+    // Fibonacci hashing: ids from one thread's block are consecutive and must spread out
+    private static int home(long id, int mask) {
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    private Account load(ByteBuffer chunk, int off, long id) {
+        long version = (long) LONGS.getAcquire(chunk, off + VERSION);
+        Account acc = Journal.newAccount(chunk.get(off + TYPE), id, readName(chunk.getLong(off + OWNER)),
+                chunk.getInt(off + FREE), chunk.getLong(off + PARAM));
+        acc.replayState(chunk.getLong(off + BALANCE), chunk.getLong(off + AUX), version);
+        acc.setCalendar(calendar);
+        Journal j = journal;
+        if (j != null) acc.setJournal(j);
+        acc.bindStore(this);
+        return acc;
+    }
+
+    // drops the map entries of views the GC has collected
+    private void purge() {
+        for (Reference<? extends Account> r; (r = collected.poll()) != null; ) {
+            views.remove(((ViewRef) r).id, r);
+        }
+    }
+
+    private static int offset(long slot) {
+        return (int) (slot & ((1 << SLOTS_BITS) - 1)) * SLOT_SIZE;
+    }
+
+    private ByteBuffer chunk(long slot) {
+        return chunks[(int) (slot >>> SLOTS_BITS)];
+    }
+
+    // under this; slots are used in order, so at most one new chunk is needed
+    private ByteBuffer chunkFor(long slot) {
+        int n = (int) (slot >>> SLOTS_BITS);
+        ByteBuffer[] all = chunks;
+        if (n == all.length) {
+            all = Arrays.copyOf(all, n + 1);
+            all[n] = ByteBuffer.allocateDirect(SLOT_SIZE << SLOTS_BITS).order(ByteOrder.nativeOrder());
+            chunks = all;
+        }
+        return all[n];
+    }
+
+    // [length][UTF-8 bytes], never split across name chunks
+    private synchronized long appendName(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (4 + bytes.length > NAME_CHUNK_SIZE) throw new IllegalArgumentException("Owner name too long.");
+        ByteBuffer[] all = names;
+        ByteBuffer last = all.length == 0 ? null : all[all.length - 1];
+        if (last == null || last.remaining() < 4 + bytes.length) {
+            last = ByteBuffer.allocateDirect(NAME_CHUNK_SIZE);
+            all = Arrays.copyOf(all, all.length + 1);
+            all[all.length - 1] = last;
+            names = all;
+        }
+        long ref = ((long) (all.length - 1) << 32) | last.position();
+        last.putInt(bytes.length).put(bytes);
+        return ref;
+    }
+
+    private String readName(long ref) {
+        ByteBuffer chunk = names[(int) (ref >>> 32)];
+        int pos = (int) ref;
+        byte[] bytes = new byte[chunk.getInt(pos)];
+        chunk.get(pos + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+/*
+ * Keeps the recently used accounts in memory, at most about `capacity` of them in
+ * SEGMENTS separate LRU lists, and pages the others out to a local file, histories
+ * included, in the snapshot record format. get() faults a paged-out account back in,
+ * so the rest of the bank never notices; resident memory follows the working set.
+ *
+ * An account is still one object at a time. An evicted account stays reachable
+ * through a weak reference until the GC takes it, and get() hands out that same object
+ * while anyone holds it. A change to an evicted account puts it back into its LRU list
+ * (written), so it will be paged out again. Eviction only queues accounts: a pager
+ * thread writes them, locking each account while holding no other lock, because
+ * written() is called under one or two account locks and must never wait for a third.
+ *
+ * The page file is a cache, not a durable copy: it starts empty and is only appended
+ * to, and once dead records (older copies of accounts paged out again) make up most of
+ * it, the pager rewrites the live ones into a fresh file. The journal and the
+ * snapshots remain the durable state.
+ *
+ * What stays in memory for every account is its index slot (id, page location and
+ * version, plus its hash table entry: about 32 bytes). The bank keeps no owner index
+ * for this store (see OwnerScan), and snapshots and owner lookups read paged-out
+ * accounts from the page file without faulting them in.
+ */
+class TieredAccountStore implements AccountStore, Closeable {
+    private static final int SEGMENTS = 16;
+    private static final int SLOT_BITS = 16; // slots per index chunk
+    private static final int INITIAL_TABLE = 1 << 10;
+    private static final long ABSENT = 0;
+    private static final long NOT_PAGED = -1; // created, never written to the page file
+    private static final long COMPACT_MIN_BYTES = 64L << 20;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final Path file;
+    private volatile FileChannel pages; // replaced by compaction under all segment locks
+    private final AtomicLong fileEnd = new AtomicLong();
+    private final BlockingQueue<Account> pageOut = new LinkedBlockingQueue<>();
+    private final Thread pager;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong faults = new AtomicLong();
+    private final AtomicLong pageOuts = new AtomicLong();
+    private volatile BillingCalendar calendar;
+    private volatile Journal journal;
+    private volatile boolean closed;
+
+    // one slot per account, in the order they were created: its id, the page file offset
+    // + 1 of its latest record (or NOT_PAGED) and the account version in that record.
+    // Ids are sparse (see AccountIds), so an open-addressing table maps them to slots:
+    // slot + 1 per entry, 0 = free, kept at most half full. All guarded by this.
+    private long[][] ids = new long[0][];
+    private long[][] locations = new long[0][];
+    private long[][] versions = new long[0][];
+    private int slots;
+    private int[] table = new int[INITIAL_TABLE];
+    private long liveBytes; // size of the latest record of every paged-out account
+
+    // one LRU list; everything in it is guarded by the segment's monitor
+    private static final class Segment {
+        final int capacity;
+        final LinkedHashMap<Long, Account> lru = new LinkedHashMap<>(16, 0.75f, true);
+        final Map<Long, Evicted> evicted = new HashMap<>();
+        final ReferenceQueue<Account> collected = new ReferenceQueue<>();
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+        }
+
+        // the evicted account if the GC has not taken it yet; drops the entry either way
+        Account reclaim(long id) {
+            for (Reference<? extends Account> r; (r = collected.poll()) != null; ) {
+                evicted.remove(((Evicted) r).id, r);
+            }
+            Evicted e = evicted.remove(id);
+            return e == null ? null : e.get();
+        }
+    }
+
+    private static final class Evicted extends WeakReference<Account> {
+        final long id;
+
+        Evicted(Account acc, ReferenceQueue<Account> queue) {
+            super(acc, queue);
+            this.id = acc.getId();
+        }
+    }
+
+    // the file is truncated: whatever an earlier run paged out is of no use now
+    TieredAccountStore(int capacity, Path file) throws IOException {
+        for (int i = 0; i < SEGMENTS; i++) segments[i] = new Segment(Math.max(1, capacity / SEGMENTS));
+        this.file = file;
+        this.pages = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.pager = new Thread(this::pageOutLoop, "account-pager");
+        pager.setDaemon(true);
+        pager.start();
+    }
+
+    public Account get(long id) {
+        Segment seg = segment(id);
+        synchronized (seg) {
+            Account acc = seg.lru.get(id);
+            if (acc != null) return acc;
+            acc = seg.reclaim(id);
+            if (acc == null) {
+                long location = location(id);
+                if (location == ABSENT) return null;
+                // an account leaves the pager's queue only once its record is in the index
+                if (location == NOT_PAGED) throw new IllegalStateException("Account " + id + " was lost by the pager.");
+                acc = readPage(location - 1);
+                faults.incrementAndGet();
+            }
+            admit(seg, acc);
+            return acc;
+        }
+    }
+
+    public void add(Account acc) {
+        long id = acc.getId();
+        if (created(id)) count.incrementAndGet();
+        Segment seg = segment(id);
+        synchronized (seg) {
+            seg.evicted.remove(id);
+            admit(seg, acc);
+        }
+        acc.bindStore(this);
+    }
+
+    // a change to an evicted account must reach the page file again
+    public void written(Account acc) {
+        long id = acc.getId();
+        Segment seg = segment(id);
+        synchronized (seg) {
+            if (seg.lru.get(id) == null) {
+                seg.evicted.remove(id);
+                admit(seg, acc);
+            }
+        }
+    }
+
+    public long size() { return count.get(); }
+
+    // walks the ids in order, faulting in the paged-out accounts one by one (snapshots
+    // use writeSnapshot, which does not)
+    public Collection<Account> values() {
+        int last;
+        synchronized (this) {
+            last = slots;
+        }
+        return new AbstractCollection<Account>() {
+            public int size() { return (int) Math.min(Integer.MAX_VALUE, count.get()); }
+
+            public Iterator<Account> iterator() {
+                return new Iterator<Account>() {
+                    private int slot = -1;
+                    private Account next = advance();
+
+                    private Account advance() {
+                        while (++slot < last) {
+                            Account acc = get(idAt(slot));
+                            if (acc != null) return acc;
+                        }
+                        return null;
+                    }
+
+                    public boolean hasNext() { return next != null; }
+
+                    public Account next() {
+                        if (next == null) throw new NoSuchElementException();
+                        Account acc = next;
+                        next = advance();
+                        return acc;
+                    }
+                };
+            }
+        };
+    }
+
+    /*
+     * Writes the accounts in memory (resident, or evicted and not yet collected) from
+     * their objects and copies every other account's record straight from the page file,
+     * which holds the same records a snapshot does. Nothing is faulted in, so the working
+     * set stays resident, and the page file is read without holding a segment lock.
+     */
+    public int writeSnapshot(DataOutputStream out) throws IOException {
+        int last;
+        synchronized (this) {
+            last = slots;
+        }
+        Set<Long> inMemory = new HashSet<>();
+        List<Account> copy = new ArrayList<>();
+        int count = 0;
+        for (Segment seg : segments) {
+            copy.clear();
+            synchronized (seg) {
+                copy.addAll(seg.lru.values());
+                for (Evicted e : seg.evicted.values()) {
+                    Account a = e.get();
+                    if (a != null) copy.add(a);
+                }
+            }
+            for (Account a : copy) {
+                Snapshot.writeAccount(out, a);
+                inMemory.add(a.getId());
+                count++;
+            }
+        }
+        // an account paged out since its segment was copied has a record at least as new
+        // as the journal offset; one created since then is in the journal tail
+        for (int slot = 0; slot < last; slot++) {
+            if (inMemory.contains(idAt(slot))) continue;
+            ByteBuffer record = pagedRecord(slot);
+            if (record == null) continue;
+            out.write(record.array(), 0, record.limit());
+            count++;
+        }
+        return count;
+    }
+
+    public OwnerIndex ownerIndex() { return new OwnerScan(this::forEachOwner); }
+
+    // names of accounts in memory as they are, the others from the head of their page
+    // record; like writeSnapshot, faults nothing in
+    private void forEachOwner(OwnerScan.Visitor visitor) {
+        int last;
+        synchronized (this) {
+            last = slots;
+        }
+        Map<Long, String> inMemory = new HashMap<>();
+        for (Segment seg : segments) {
+            synchronized (seg) {
+                for (Account a : seg.lru.values()) inMemory.put(a.getId(), a.getOwnerName());
+                for (Evicted e : seg.evicted.values()) {
+                    Account a = e.get();
+                    if (a != null) inMemory.put(a.getId(), a.getOwnerName());
+                }
+            }
+        }
+        try {
+            for (int slot = 0; slot < last; slot++) {
+                long id = idAt(slot);
+                String owner = inMemory.get(id);
+                if (owner == null) owner = pagedOwner(slot);
+                if (owner != null) visitor.visit(id, owner);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read owner names from " + file, e);
+        }
+    }
+
+    public void setJournal(Journal j) {
+        journal = j;
+        for (Segment seg : segments) {
+            synchronized (seg) {
+                for (Account a : seg.lru.values()) a.setJournal(j);
+                for (Evicted e : seg.evicted.values()) {
+                    Account a = e.get();
+                    if (a != null) a.setJournal(j);
+                }
+            }
+        }
+    }
+
+    public void setCalendar(BillingCalendar calendar) { this.calendar = calendar; }
+
+    String stats() {
+        long resident = 0;
+        for (Segment seg : segments) {
+            synchronized (seg) {
+                resident += seg.lru.size();
+            }
+        }
+        return String.format("accounts %d, resident %d, page-outs %d, faults %d, page file %d MB",
+                count.get(), resident, pageOuts.get(), faults.get(), fileEnd.get() >> 20);
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        pager.interrupt();
+        try {
+            pager.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        pages.close();
+        Files.deleteIfExists(file);
+    }
+
+    // puts the account at the young end of the list and queues whatever falls off the old end
+    private void admit(Segment seg, Account acc) {
+        seg.lru.put(acc.getId(), acc);
+        if (seg.lru.size() <= seg.capacity) return;
+        Iterator<Account> oldest = seg.lru.values().iterator();
+        while (seg.lru.size() > seg.capacity) {
+            Account victim = oldest.next();
+            oldest.remove();
+            seg.evicted.put(victim.getId(), new Evicted(victim, seg.collected));
+            pageOut.add(victim);
+        }
+    }
+
+    // ids come in runs from per-thread blocks, so spread them before picking a segment
+    private Segment segment(long id) {
+        return segments[(int) ((id * 0x9E3779B97F4A7C15L) >>> 60)];
+    }
+
+    /* Pager */
+
+    private void pageOutLoop() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 12);
+        DataOutputStream out = new DataOutputStream(bytes);
+        while (true) {
+            Account acc;
+            try {
+                acc = pageOut.take();
+            } catch (InterruptedException ie) {
+                return; // closing; the page file is dropped anyway
+            }
+            try {
+                write(acc, bytes, out);
+                if (pageOut.isEmpty()) compactIfNeeded();
+            } catch (IOException e) {
+                if (closed) return; // interrupted in the middle of a write
+                // the account cannot leave memory; keep it resident instead
+                System.err.println("Page-out of account " + acc.getId() + " failed: " + e);
+                written(acc);
+            }
+        }
+    }
+
+    // appends [length][record] unless the page file already has this version
+    private void write(Account acc, ByteArrayOutputStream bytes, DataOutputStream out) throws IOException {
+        long id = acc.getId();
+        long current;
+        synchronized (acc) {
+            current = acc.getVersion();
+        }
+        synchronized (this) {
+            int slot = slotOf(id);
+            if (locations[chunk(slot)][at(slot)] > 0 && versions[chunk(slot)][at(slot)] == current) return;
+        }
+        bytes.reset();
+        out.writeInt(0);
+        long version = Snapshot.writeAccount(out, acc);
+        ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+        buf.putInt(0, buf.capacity() - 4);
+        long previous = location(id);
+        long dead = previous > 0 ? 4 + readLength(pages, previous - 1) : 0;
+        long position = fileEnd.getAndAdd(buf.capacity());
+        while (buf.hasRemaining()) pages.write(buf, position + buf.position());
+        synchronized (this) {
+            int slot = slotOf(id);
+            locations[chunk(slot)][at(slot)] = position + 1;
+            versions[chunk(slot)][at(slot)] = version;
+            liveBytes += buf.capacity() - dead;
+        }
+        pageOuts.incrementAndGet();
+    }
+
+    /*
+     * Copies the live records into a fresh file, then swaps files and locations while
+     * holding every segment lock, so no fault-in reads in between. Only the pager appends,
+     * and it is busy here, so the old file does not change during the copy.
+     */
+    private void compactIfNeeded() throws IOException {
+        int last;
+        synchronized (this) {
+            if (fileEnd.get() < Math.max(COMPACT_MIN_BYTES, 2 * liveBytes)) return;
+            last = slots;
+        }
+        FileChannel old = pages;
+        Path tmp = file.resolveSibling(file.getFileName() + ".compact");
+        FileChannel fresh = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        long[][] moved = new long[chunk(last) + 1][];
+        long end = 0;
+        for (int slot = 0; slot < last; slot++) {
+            long location = locationAt(slot);
+            if (location <= 0) continue;
+            ByteBuffer record = ByteBuffer.allocate(4 + readLength(old, location - 1));
+            readFully(old, record, location - 1);
+            record.flip();
+            while (record.hasRemaining()) fresh.write(record, end + record.position());
+            if (moved[chunk(slot)] == null) moved[chunk(slot)] = new long[1 << SLOT_BITS];
+            moved[chunk(slot)][at(slot)] = end + 1;
+            end += record.capacity();
+        }
+        swap(0, fresh, moved, end);
+        old.close();
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void swap(int segment, FileChannel fresh, long[][] moved, long end) {
+        if (segment < SEGMENTS) {
+            synchronized (segments[segment]) {
+                swap(segment + 1, fresh, moved, end);
+            }
+            return;
+        }
+        synchronized (this) {
+            for (int c = 0; c < moved.length; c++) {
+                if (moved[c] == null) continue;
+                for (int i = 0; i < moved[c].length; i++) {
+                    if (moved[c][i] != 0) locations[c][i] = moved[c][i];
+                }
+            }
+            liveBytes = end;
+            pages = fresh;
+            fileEnd.set(end);
+        }
+    }
+
+    private static int readLength(FileChannel channel, long position) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(channel, length, position);
+        return length.getInt(0);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, position + dst.position()) < 0) throw new EOFException("Truncated page file");
+        }
+    }
+
+    private interface PageRead<T> {
+        // position is where the record's [length] starts
+        T read(FileChannel channel, long position) throws IOException;
+    }
+
+    // reads the latest record of the account in this slot, or returns null if it has none
+    private <T> T readPaged(int slot, PageRead<T> read) throws IOException {
+        while (true) {
+            long location;
+            FileChannel channel;
+            synchronized (this) {
+                location = locations[chunk(slot)][at(slot)];
+                channel = pages;
+            }
+            if (location <= 0) return null;
+            try {
+                return read.read(channel, location - 1);
+            } catch (ClosedChannelException e) {
+                if (closed) throw e;
+                // compaction swapped files after the location was read; look it up again
+            }
+        }
+    }
+
+    // the whole record, without its length
+    private ByteBuffer pagedRecord(int slot) throws IOException {
+        return readPaged(slot, (channel, position) -> {
+            ByteBuffer record = ByteBuffer.allocate(readLength(channel, position));
+            readFully(channel, record, position + 4);
+            return record.flip();
+        });
+    }
+
+    // the owner name from the head of the record, [length][id][type][name length][name],
+    // in one read when the name is short
+    private String pagedOwner(int slot) throws IOException {
+        return readPaged(slot, (channel, position) -> {
+            int nameAt = 4 + 8 + 1 + 4;
+            ByteBuffer head = ByteBuffer.allocate(nameAt + 64);
+            while (head.position() < nameAt) {
+                if (channel.read(head, position + head.position()) < 0) throw new EOFException("Truncated page file");
+            }
+            byte[] name = new byte[head.getInt(nameAt - 4)];
+            int inHead = Math.min(name.length, head.position() - nameAt);
+            head.get(nameAt, name, 0, inHead);
+            if (inHead < name.length) {
+                // readFully adds the buffer's position, which starts at inHead
+                readFully(channel, ByteBuffer.wrap(name, inHead, name.length - inHead), position + nameAt);
+            }
+            return new String(name, StandardCharsets.UTF_8);
+        });
+    }
+
+    private Account readPage(long position) {
+        try {
+            FileChannel channel = pages;
+            ByteBuffer record = ByteBuffer.allocate(readLength(channel, position));
+            readFully(channel, record, position + 4);
+            record.flip();
+            Account acc = Snapshot.readAccount(new Snapshot.BufferInput(record), record.getLong());
+            acc.setCalendar(calendar);
+            Journal j = journal;
+            if (j != null) acc.setJournal(j);
+            acc.bindStore(this);
+            return acc;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read account from " + file, e);
+        }
+    }
+
+    /* Index */
+
+    private static int chunk(int slot) { return slot >>> SLOT_BITS; }
+    private static int at(int slot) { return slot & ((1 << SLOT_BITS) - 1); }
+
+    // Fibonacci hashing: ids from one thread's block are consecutive and must spread out
+    private static int home(long id, int mask) {
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    // under this: the slot of the account with this id, or -1
+    private int slotOf(long id) {
+        int mask = table.length - 1;
+        for (int i = home(id, mask); ; i = (i + 1) & mask) {
+            int slot = table[i] - 1;
+            if (slot < 0 || ids[chunk(slot)][at(slot)] == id) return slot;
+        }
+    }
+
+    private synchronized long location(long id) {
+        int slot = slotOf(id);
+        return slot < 0 ? ABSENT : locations[chunk(slot)][at(slot)];
+    }
+
+    private synchronized long locationAt(int slot) { return locations[chunk(slot)][at(slot)]; }
+
+    private synchronized long idAt(int slot) { return ids[chunk(slot)][at(slot)]; }
+
+    // true if the id was not known yet
+    private synchronized boolean created(long id) {
+        if (slotOf(id) >= 0) return false;
+        if (slots == Integer.MAX_VALUE - 1) throw new IllegalStateException("Tiered store is full.");
+        int slot = slots++;
+        int c = chunk(slot);
+        if (c == ids.length) {
+            ids = Arrays.copyOf(ids, c + 1);
+            locations = Arrays.copyOf(locations, c + 1);
+            versions = Arrays.copyOf(versions, c + 1);
+            ids[c] = new long[1 << SLOT_BITS];
+            locations[c] = new long[1 << SLOT_BITS];
+            versions[c] = new long[1 << SLOT_BITS];
+        }
+        ids[c][at(slot)] = id;
+        locations[c][at(slot)] = NOT_PAGED;
+        if ((long) slots * 2 > table.length) {
+            table = new int[table.length * 2];
+            for (int s = 0; s < slots; s++) place(ids[chunk(s)][at(s)], s);
+        } else {
+            place(id, slot);
+        }
+        return true;
+    }
+
+    private void place(long id, int slot) {
+        int mask = table.length - 1;
+        int i = home(id, mask);
+        while (table[i] != 0) i = (i + 1) & mask;
+        table[i] = slot + 1;
+    }
+}
+
+/* -----------------------------
+   OwnerIndex: accounts by owner name
+   ----------------------------- */
+
+/*
+ * Looks customers up by name. Names are compared by key: folded to lower case with runs
+ * of blanks collapsed, so "Mary  Ann" finds "mary ann". Each store picks the kind it
+ * can afford (AccountStore.ownerIndex).
+ */
+interface OwnerIndex {
+    // called for every new or restored account
+    void add(Account acc);
+
+    // the accounts with exactly this owner, in the order they were added
+    List<Long> find(String name);
+
+    // at most limit accounts whose owner name starts with prefix, ordered by name
+    List<Long> findByPrefix(String prefix, int limit);
+
+    static String key(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isWhitespace(c)) {
+                if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ') sb.append(' ');
+            } else {
+                sb.append(c);
+            }
+        }
+        if (sb.length() > 0 && sb.charAt(sb.length() - 1) == ' ') sb.setLength(sb.length() - 1);
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+}
+
+/*
+ * Secondary index from owner key to account ids. The skip list keeps the keys sorted:
+ * an exact lookup is one O(log n) probe and a prefix lookup walks the names from the
+ * first match onwards. Most names belong to a single account, so the value is its id;
+ * a name shared by several accounts maps to an array, replaced (never modified) when
+ * another one joins. Accounts are never closed, so entries are only ever added.
+ */
+class SortedOwnerIndex implements OwnerIndex {
+    private final ConcurrentSkipListMap<String, Object> byName = new ConcurrentSkipListMap<>();
+
+    public void add(Account acc) {
+        byName.merge(OwnerIndex.key(acc.getOwnerName()), acc.getId(), SortedOwnerIndex::join);
+    }
+
+    public List<Long> find(String name) {
+        List<Long> out = new ArrayList<>();
+        collect(byName.get(OwnerIndex.key(name)), out, Integer.MAX_VALUE);
+        return out;
+    }
+
+    public List<Long> findByPrefix(String prefix, int limit) {
+        String p = OwnerIndex.key(prefix);
+        List<Long> out = new ArrayList<>();
+        for (Map.Entry<String, Object> e : byName.tailMap(p).entrySet()) {
+            if (out.size() >= limit || !e.getKey().startsWith(p)) break;
+            collect(e.getValue(), out, limit);
+        }
+        return out;
+    }
+
+    private static Object join(Object existing, Object added) {
+        long[] old = existing instanceof Long ? new long[] { (Long) existing } : (long[]) existing;
+        long[] grown = Arrays.copyOf(old, old.length + 1);
+        grown[old.length] = (Long) added;
+        return grown;
+    }
+
+    private static void collect(Object value, List<Long> out, int limit) {
+        if (value instanceof Long) {
+            out.add((Long) value);
+        } else if (value != null) {
+            for (long id : (long[]) value) {
+                if (out.size() >= limit) break;
+                out.add(id);
+            }
+        }
+    }
+}
+
+/*
+ * Owner lookups without an index, for stores whose memory must not grow with the number
+ * of accounts: every lookup walks the owner names the store already keeps. A lookup
+ * then costs a pass over all accounts rather than a probe, and keeps only its matches
+ * (at most limit for a prefix) on the heap.
+ */
+class OwnerScan implements OwnerIndex {
+    interface Visitor {
+        void visit(long id, String owner);
+    }
+
+    interface Source {
+        // every account's id and owner name, in the order the accounts were added
+        void forEachOwner(Visitor visitor);
+    }
+
+    private static final class Match {
+        final String key;
+        final long seq;
+        final long id;
+
+        Match(String key, long seq, long id) {
+            this.key = key;
+            this.seq = seq;
+            this.id = id;
+        }
+    }
+
+    private static final Comparator<Match> BY_NAME = Comparator.<Match, String>comparing(m -> m.key)
+            .thenComparingLong(m -> m.seq);
+
+    private final Source source;
+
+    OwnerScan(Source source) {
+        this.source = source;
+    }
+
+    public void add(Account acc) { } // the store has the name already
+
+    public List<Long> find(String name) {
+        String k = OwnerIndex.key(name);
+        List<Long> out = new ArrayList<>();
+        source.forEachOwner((id, owner) -> {
+            if (OwnerIndex.key(owner).equals(k)) out.add(id);
+        });
+        return out;
+    }
+
+    public List<Long> findByPrefix(String prefix, int limit) {
+        String p = OwnerIndex.key(prefix);
+        // the limit smallest matches by name, largest on top so it can be dropped
+        PriorityQueue<Match> best = new PriorityQueue<>(BY_NAME.reversed());
+        long[] seq = new long[1];
+        source.forEachOwner((id, owner) -> {
+            String k = OwnerIndex.key(owner);
+            long n = seq[0]++;
+            if (limit <= 0 || !k.startsWith(p)) return;
+            if (best.size() < limit) {
+                best.add(new Match(k, n, id));
+            } else if (k.compareTo(best.peek().key) < 0) {
+                best.poll();
+                best.add(new Match(k, n, id));
+            }
+        });
+        List<Match> sorted = new ArrayList<>(best);
+        sorted.sort(BY_NAME);
+        List<Long> out = new ArrayList<>(sorted.size());
+        for (Match m : sorted) out.add(m.id);
+        return out;
+    }
+}
+
+/* -----------------------------
+   Bank: manages accounts & console UI
+   ----------------------------- */
+
+class Bank {
+    private final String name;
+    private final AccountStore accounts;
+    private final OwnerIndex owners;
+    private final Scanner scanner = new Scanner(System.in);
+    private volatile Journal journal; // null when running purely in memory
+    private final BillingCalendar calendar = new BillingCalendar();
+    private final ThreadLocal<int[]> deferredSync = ThreadLocal.withInitial(() -> new int[1]); // see beginDeferredSync
+    private final Map<Long, PreparedTransfer> prepared = new ConcurrentHashMap<>(); // cross-shard, by transaction id
+    private final ResolvedTransfers resolved = new ResolvedTransfers();
+    private final Object[] transferLocks = new Object[64];
+    private final BankMetrics metrics = new BankMetrics();
+    private Path snapshotFile;
+    private ScheduledExecutorService snapshotter;
+
+    public Bank(String name) {
+        this(name, new HeapAccountStore());
+    }
+
+    public Bank(String name, AccountStore store) {
+        this.name = name;
+        this.accounts = store;
+        this.owners = store.ownerIndex();
+        store.setCalendar(calendar);
+        for (int i = 0; i < transferLocks.length; i++) transferLocks[i] = new Object();
+    }
+
+    // demo seed
+    public void seedDemoData() {
+        createAccountInternal(new SavingsAccount("Alice", 100_000, 0.03));
+        createAccountInternal(new CheckingAccount("Bob", 50_000, 2, 100));
+    }
+
+    // internal helper to skip printing
+    private void createAccountInternal(Account acc) {
+        openAccount(acc);
+    }
+
+    /* Thread-safe ledger operations: safe to call from many worker threads at once. */
+
+    /*
+     * Each public operation below is timed into metrics, failures included; the time
+     * covers the journal sync, which is what the caller waits for.
+     */
+
+    public Account openAccount(Account acc) {
+        long started = System.nanoTime();
+        try {
+            // registered and journaled under the account lock, so a snapshot never sees it half-created
+            synchronized (acc) {
+                acc.attachCalendar(calendar);
+                accounts.add(acc);
+                if (journal != null) acc.attachJournal(journal);
+            }
+            owners.add(acc);
+            metrics.accountAdded(acc);
+            syncJournal();
+            return acc;
+        } catch (RuntimeException e) {
+            metrics.failed(BankMetrics.OPEN_ACCOUNT, e);
+            throw e;
+        } finally {
+            metrics.record(BankMetrics.OPEN_ACCOUNT, started);
+        }
+    }
+
+    public Account getAccount(long id) {
+        return accounts.get(id);
+    }
+
+    public Collection<Account> getAccounts() {
+        return accounts.values();
+    }
+
+    int writeAccounts(DataOutputStream out) throws IOException {
+        return accounts.writeSnapshot(out);
+    }
+
+    public long accountCount() {
+        return accounts.size();
+    }
+
+    // case-insensitive; see OwnerIndex
+    public List<Account> findByOwner(String name) {
+        return resolve(owners.find(name));
+    }
+
+    public List<Account> findByOwnerPrefix(String prefix, int limit) {
+        return resolve(owners.findByPrefix(prefix, limit));
+    }
+
+    private List<Account> resolve(List<Long> ids) {
+        List<Account> found = new ArrayList<>(ids.size());
+        for (long id : ids) {
+            Account acc = accounts.get(id);
+            if (acc != null) found.add(acc);
+        }
+        return found;
+    }
+
+    public void deposit(long id, long amount) {
+        long started = System.nanoTime();
+        try {
+            requireAccount(id).deposit(amount);
+            syncJournal();
+        } catch (RuntimeException e) {
+            metrics.failed(BankMetrics.DEPOSIT, e);
+            throw e;
+        } finally {
+            metrics.record(BankMetrics.DEPOSIT, started);
+        }
+    }
+
+    public void withdraw(long id, long amount) {
+        long started = System.nanoTime();
+        try {
+            requireAccount(id).withdraw(amount);
+            syncJournal();
+        } catch (RuntimeException e) {
+            metrics.failed(BankMetrics.WITHDRAW, e);
+            throw e;
+        } finally {
+            metrics.record(BankMetrics.WITHDRAW, started);
+        }
+    }
+
+    public long balance(long id) {
+        return requireAccount(id).getBalance();
+    }
+
+    /*
+     * Debits and credits both accounts while holding both locks, so the transfer is
+     * atomic. Locks are always taken lower id first; two opposite transfers between
+     * the same pair of accounts therefore cannot deadlock.
+     */
+    public void transfer(long fromId, long toId, long amount) {
+        long started = System.nanoTime();
+        try {
+            transferLocked(fromId, toId, amount);
+            syncJournal();
+        } catch (RuntimeException e) {
+            metrics.failed(BankMetrics.TRANSFER, e);
+            throw e;
+        } finally {
+            metrics.record(BankMetrics.TRANSFER, started);
+        }
+    }
+
+    private void transferLocked(long fromId, long toId, long amount) {
+        if (fromId == toId) throw new IllegalArgumentException("Cannot transfer to the same account.");
+        if (amount <= 0) throw new IllegalArgumentException("Amount must be positive.");
+        Account from = requireAccount(fromId);
+        Account to = requireAccount(toId);
+        Account first = fromId < toId ? from : to;
+        Account second = fromId < toId ? to : from;
+        Journal j = journal;
+        synchronized (first) {
+            synchronized (second) {
+                // both legs go into one journal frame, so a crash never replays half a transfer
+                if (j != null) j.begin();
+                try {
+                    from.debit(amount, Transaction.TRANSFER_OUT, "Transfer to account " + toId); // applies fees if checking
+                    to.credit(amount, Transaction.TRANSFER_IN, "Transfer from account " + fromId);
+                } finally {
+                    if (j != null) j.end();
+                }
+            }
+        }
+    }
+
+    /*
+     * One side of a transfer between shards, driven by a ShardRouter in two phases.
+     * prepare debits the source (fees included) or just checks that the destination
+     * exists; commit credits the destination; abort gives the source its money back
+     * (a checking withdrawal it counted stays counted). Each step is journaled in the
+     * same frame as its posting, so it survives a restart. The router retries until it
+     * gets an answer, so repeating a step must be harmless: a prepare that comes again
+     * after its transfer was resolved is answered from the resolved outcomes (see
+     * ResolvedTransfers), which are journaled and snapshotted too, and an abort that
+     * arrives before its prepare is journaled so the late prepare is refused.
+     */
+    public void prepareTransfer(long tx, boolean debit, long accountId, long counterparty, long amount) {
+        if (amount <= 0) throw new IllegalArgumentException("Amount must be positive.");
+        synchronized (transferLock(tx)) {
+            if (prepared.containsKey(tx)) return;
+            Boolean outcome = resolved.outcome(tx);
+            if (outcome == Boolean.TRUE) return; // committed already; nothing left to prepare
+            if (outcome == Boolean.FALSE) throw new IllegalArgumentException("Transfer " + tx + " was aborted.");
+            if (resolved.forgotten(tx)) throw new IllegalArgumentException("Transfer " + tx + " is too old.");
+            Account acc = requireAccount(accountId);
+            Journal j = journal;
+            synchronized (acc) {
+                if (j != null) j.begin();
+                try {
+                    long taken = 0;
+                    if (debit) {
+                        long before = acc.getBalance();
+                        acc.debit(amount, Transaction.TRANSFER_OUT, "Transfer to account " + counterparty);
+                        taken = before - acc.balance;
+                    }
+                    PreparedTransfer p = new PreparedTransfer(tx, debit, accountId, counterparty, debit ? taken : amount);
+                    if (j != null) j.logTransfer(Journal.TX_PREPARED, p);
+                    prepared.put(tx, p);
+                } finally {
+                    if (j != null) j.end();
+                }
+            }
+        }
+        syncJournal();
+    }
+
+    public void commitTransfer(long tx) {
+        resolveTransfer(tx, true);
+    }
+
+    public void abortTransfer(long tx) {
+        resolveTransfer(tx, false);
+    }
+
+    private void resolveTransfer(long tx, boolean commit) {
+        byte state = commit ? Journal.TX_COMMITTED : Journal.TX_ABORTED;
+        synchronized (transferLock(tx)) {
+            PreparedTransfer p = prepared.get(tx);
+            if (p == null) {
+                // resolved before, or never prepared here; only an abort must outlive a late prepare
+                if (commit || resolved.outcome(tx) != null || resolved.forgotten(tx)) return;
+                Journal j = journal;
+                if (j != null) j.logTransfer(state, new PreparedTransfer(tx, false, 0, 0, 0));
+                resolved.add(tx, false);
+            } else {
+                resolvePrepared(p, commit, state);
+            }
+        }
+        syncJournal();
+    }
+
+    private void resolvePrepared(PreparedTransfer p, boolean commit, byte state) {
+        Account acc = requireAccount(p.account);
+        Journal j = journal;
+        synchronized (acc) {
+            if (j != null) j.begin();
+            try {
+                if (commit && !p.debit) {
+                    acc.credit(p.amount, Transaction.TRANSFER_IN, "Transfer from account " + p.counterparty);
+                } else if (!commit && p.debit) {
+                    acc.credit(p.amount, Transaction.TRANSFER_IN, "Transfer to account " + p.counterparty + " reversed");
+                }
+                if (j != null) j.logTransfer(state, p);
+                resolved.add(p.tx, commit);
+                prepared.remove(p.tx);
+            } finally {
+                if (j != null) j.end();
+            }
+        }
+    }
+
+    private Object transferLock(long tx) {
+        return transferLocks[(int) (tx & (transferLocks.length - 1))];
+    }
+
+    // prepared and not yet resolved; the router resolves them once it can reach this shard
+    Collection<PreparedTransfer> preparedTransfers() {
+        return prepared.values();
+    }
+
+    void writeResolvedTransfers(DataOutputStream out) throws IOException {
+        resolved.write(out);
+    }
+
+    // journal replay and snapshot load
+    void restoreTransfer(byte state, PreparedTransfer p) {
+        if (state == Journal.TX_PREPARED) {
+            prepared.put(p.tx, p);
+        } else {
+            prepared.remove(p.tx);
+            resolved.add(p.tx, state == Journal.TX_COMMITTED);
+        }
+    }
+
+    void forgetTransfersThrough(long tx) {
+        resolved.forgetThrough(tx);
+    }
+
+    /*
+     * Opens the next billing period and nothing else: accounts catch up (interest,
+     * withdrawal counters) under their own lock the next time they are used, so
+     * month-end costs the same for ten accounts as for ten million.
+     */
+    public String monthlyUpdate() {
+        long started = System.nanoTime();
+        try {
+            int period = openNextPeriod();
+            syncJournal();
+            return "Billing period " + period + " opened.";
+        } catch (RuntimeException e) {
+            metrics.failed(BankMetrics.MONTHLY_UPDATE, e);
+            throw e;
+        } finally {
+            metrics.record(BankMetrics.MONTHLY_UPDATE, started);
+        }
+    }
+
+    BankMetrics metrics() {
+        return metrics;
+    }
+
+    // streams the account's statement into any channel (stdout, a file, a socket)
+    public int writeStatement(long id, WritableByteChannel out) {
+        try {
+            return new StatementWriter(out).write(requireAccount(id));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write statement", e);
+        }
+    }
+
+    // journaled under the calendar lock so the journal sees periods in order
+    private int openNextPeriod() {
+        synchronized (calendar) {
+            long at = LedgerClock.now();
+            int period = calendar.advance(at);
+            Journal j = journal;
+            if (j != null) j.logPeriod(period, at);
+            return period;
+        }
+    }
+
+    BillingCalendar calendar() {
+        return calendar;
+    }
+
+    /* Journal: durable history of every account change */
+
+    public void openJournal(Path path) throws IOException {
+        openJournal(path, null);
+    }
+
+    /*
+     * Loads the snapshot (if there is one), replays the journal written after it into
+     * this empty bank, then journals every later change.
+     */
+    public void openJournal(Path path, Path snapshot) throws IOException {
+        if (journal != null) throw new IllegalStateException("Journal already open.");
+        long start = 0;
+        if (snapshot != null && Files.exists(snapshot)) {
+            start = Snapshot.load(snapshot, this);
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long end = Journal.replay(channel, this, start);
+        channel.truncate(end); // drop a torn frame left by a crash
+        Journal j = new Journal(channel, end);
+        accounts.setJournal(j);
+        AccountIds.setListener(j::logIdBlock);
+        journal = j;
+        snapshotFile = snapshot;
+    }
+
+    // one snapshot at a time; writers keep running while it is taken
+    public synchronized String writeSnapshot() throws IOException {
+        if (journal == null || snapshotFile == null) {
+            throw new IllegalStateException("Snapshots are not enabled (start with --journal and --snapshot).");
+        }
+        return Snapshot.write(this, journal, snapshotFile);
+    }
+
+    public void startSnapshots(long intervalSeconds) {
+        snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshotter");
+            t.setDaemon(true);
+            return t;
+        });
+        snapshotter.scheduleWithFixedDelay(() -> {
+            try {
+                writeSnapshot();
+            } catch (Exception ex) {
+                System.err.println("Snapshot failed: " + ex.getMessage());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    void restoreAccount(Account acc) {
+        acc.setCalendar(calendar);
+        accounts.add(acc);
+        owners.add(acc);
+        metrics.accountAdded(acc);
+    }
+
+    // waits until this thread's changes are durable, unless it deferred syncing;
+    // concurrent callers share one fsync
+    void syncJournal() {
+        Journal j = journal;
+        if (j != null && deferredSync.get()[0] == 0) j.sync();
+    }
+
+    // between these calls this thread's operations return before their journal frames
+    // are on disk; the caller must call syncJournal() before reporting them as done
+    void beginDeferredSync() {
+        deferredSync.get()[0]++;
+    }
+
+    void endDeferredSync() {
+        deferredSync.get()[0]--;
+    }
+
+    public String journalStats() {
+        Journal j = journal;
+        return j == null ? "no journal" : j.stats();
+    }
+
+    public void close() throws IOException {
+        if (snapshotter != null) {
+            snapshotter.shutdown(); // let a running snapshot finish
+            try {
+                snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Journal j = journal;
+        if (j != null) {
+            AccountIds.setListener(null);
+            j.close();
+        }
+        if (accounts instanceof Closeable) ((Closeable) accounts).close();
+    }
+
+    private Account requireAccount(long id) {
+        Account acc = accounts.get(id);
+        if (acc == null) throw new AccountNotFoundException("Account not found: " + id);
+        return acc;
+    }
+
+    public void runConsole() {
+        System.out.println("Welcome to " + name + " (Console)");
+        boolean running = true;
+        while (running) {
+            printMenu();
+            System.out.print("Choose option: ");
+            String choice = scanner.nextLine().trim();
+            try {
+                switch (choice) {
+                    case "1": actionCreateAccount(); break;
+                    case "2": actionDeposit(); break;
+                    case "3": actionWithdraw(); break;
+                    case "4": actionTransfer(); break;
+                    case "5": actionShowAccounts(); break;
+                    case "6": actionShowTransactions(); break;
+                    case "7": actionMonthlyUpdate(); break;
+                    case "8": System.out.println(writeSnapshot()); break;
+                    case "9": actionExportStatement(); break;
+                    case "10": System.out.println(metrics.report()); break;
+                    case "11": actionFindByOwner(); break;
+                    case "0": running = false; break;
+                    default: System.out.println("Invalid option, try again."); break;
+                }
+            } catch (Exception ex) {
+                System.out.println("Error: " + ex.getMessage());
+            }
+            System.out.println();
+        }
+        System.out.println("Goodbye!");
+    }
+
+    private void printMenu() {
+        System.out.println("=== Menu ===");
+        System.out.println("1) Create account");
+        System.out.println("2) Deposit");
+        System.out.println("3) Withdraw");
+        System.out.println("4) Transfer");
+        System.out.println("5) Show accounts");
+        System.out.println("6) Show transactions for an account");
+        System.out.println("7) Monthly update (interest/fees reset)");
+        System.out.println("8) Write snapshot now");
+        System.out.println("9) Export statement to a file");
+        System.out.println("10) Show metrics");
+        System.out.println("11) Find accounts by owner");
+        System.out.println("0) Exit");
+    }
+
+    private void actionCreateAccount() {
+        System.out.print("Owner name: ");
+        String owner = scanner.nextLine().trim();
+        if (owner.isEmpty()) { System.out.println("Owner name cannot be empty."); return; }
+
+        System.out.println("Account type: 1) Savings  2) Checking");
+        String type = scanner.nextLine().trim();
+        System.out.print("Initial deposit: ");
+        long initial = parseMoneyInput(scanner.nextLine());
+
+        Account acc;
+        if ("1".equals(type)) {
+            System.out.print("Annual interest rate (e.g., 0.03 for 3%): ");
+            double rate = parseDoubleInput(scanner.nextLine());
+            acc = new SavingsAccount(owner, initial, rate);
+        } else {
+            System.out.print("Free withdrawals per month (e.g., 2): ");
+            int free = parseIntInput(scanner.nextLine());
+            System.out.print("Withdrawal fee after free withdrawals (e.g., 1.0): ");
+            long fee = parseMoneyInput(scanner.nextLine());
+            acc = new CheckingAccount(owner, initial, free, fee);
+        }
+        openAccount(acc);
+        System.out.println("Account created: " + acc);
+    }
+
+    private void actionDeposit() {
+        Account acc = askForAccount("Enter account id to deposit into: ");
+        if (acc == null) return;
+        System.out.print("Amount to deposit: ");
+        long amt = parseMoneyInput(scanner.nextLine());
+        deposit(acc.getId(), amt);
+        System.out.printf("Deposited %s into account %d. New balance: %s\n", Money.format(amt), acc.getId(), Money.format(acc.getBalance()));
+    }
+
+    private void actionWithdraw() {
+        Account acc = askForAccount("Enter account id to withdraw from: ");
+        if (acc == null) return;
+        System.out.print("Amount to withdraw: ");
+        long amt = parseMoneyInput(scanner.nextLine());
+        withdraw(acc.getId(), amt);
+        System.out.printf("Withdrawn %s from account %d. New balance: %s\n", Money.format(amt), acc.getId(), Money.format(acc.getBalance()));
+    }
+
+    private void actionTransfer() {
+        Account from = askForAccount("From account id: ");
+        if (from == null) return;
+        Account to = askForAccount("To account id: ");
+        if (to == null) return;
+        System.out.print("Amount to transfer: ");
+        long amt = parseMoneyInput(scanner.nextLine());
+        transfer(from.getId(), to.getId(), amt);
+        System.out.printf("Transferred %s from %d to %d.\n", Money.format(amt), from.getId(), to.getId());
+    }
+
+    private void actionShowAccounts() {
+        if (accounts.isEmpty()) {
+            System.out.println("No accounts available.");
+            return;
+        }
+        System.out.println("Accounts:");
         for (Account a : accounts.values()) {
-            a.monthlyUpdate();
+            System.out.println(a);
+        }
+    }
+
+    private void actionFindByOwner() {
+        System.out.print("Owner name (end with * to match a prefix): ");
+        String name = scanner.nextLine().trim();
+        long started = System.nanoTime();
+        List<Account> found = name.endsWith("*")
+                ? findByOwnerPrefix(name.substring(0, name.length() - 1), 50)
+                : findByOwner(name);
+        long micros = (System.nanoTime() - started) / 1_000;
+        if (found.isEmpty()) {
+            System.out.println("No accounts found.");
+            return;
+        }
+        for (Account a : found) System.out.println(a);
+        System.out.printf("%d account(s) in %d us.\n", found.size(), micros);
+    }
+
+    private void actionShowTransactions() {
+        Account acc = askForAccount("Enter account id to view transactions: ");
+        if (acc == null) return;
+        writeStatement(acc.getId(), Channels.newChannel(System.out));
+        System.out.flush();
+    }
+
+    private void actionExportStatement() throws IOException {
+        Account acc = askForAccount("Enter account id to export: ");
+        if (acc == null) return;
+        System.out.print("File name: ");
+        Path file = Paths.get(scanner.nextLine().trim());
+        long started = System.nanoTime();
+        int lines;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            lines = writeStatement(acc.getId(), channel);
+        }
+        System.out.printf("Wrote %d transactions to %s in %d ms.\n", lines, file, (System.nanoTime() - started) / 1_000_000);
+    }
+
+    private void actionMonthlyUpdate() {
+        System.out.println(monthlyUpdate());
+        System.out.println("Accounts pick up interest and fee resets on their next use.");
+    }
+
+    private Account askForAccount(String prompt) {
+        System.out.print(prompt);
+        String s = scanner.nextLine().trim();
+        long id;
+        try {
+            id = Long.parseLong(s);
+        } catch (NumberFormatException nfe) {
+            System.out.println("Invalid id.");
+            return null;
+        }
+        Account acc = accounts.get(id);
+        if (acc == null) System.out.println("Account not found.");
+        return acc;
+    }
+
+    // amounts in cents; like the other parsers, bad input becomes 0 and is rejected downstream
+    private long parseMoneyInput(String s) {
+        try {
+            return Money.parse(s);
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    private double parseDoubleInput(String s) {
+        try {
+            return Double.parseDouble(s.trim());
+        } catch (Exception e) {
+            return 0.0;
+        }
+    }
+
+    private int parseIntInput(String s) {
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+}
+
+/* -----------------------------
+   LedgerPipeline: single-writer ring buffer in front of the ledger
+   ----------------------------- */
+
+/*
+ * An alternative way to run the mutating Bank operations, in the style of a
+ * disruptor. Callers publish operations into a preallocated ring of slots and three
+ * threads work through it in order, each one stage behind the previous:
+ *
+ *   writer   applies the operations, alone, so account monitors are never contended;
+ *            each one appends its own journal frame before releasing its locks, but
+ *            none waits for the disk
+ *   journal  waits until the writer's frames are on disk (one fsync for everything
+ *            the writer took in one go, up to MAX_BATCH operations)
+ *   replier  hands each caller its result and frees the slot
+ *
+ * Stages only exchange sequence numbers; a slot's fields are written by the caller
+ * and the writer and read later, ordered by the volatile cursors. An idle stage spins
+ * briefly, then parks until the stage before it (or a caller) wakes it, so batches
+ * grow by themselves under load. Callers wait for free slots when the ring is full.
+ *
+ * The account monitors stay: other paths (console, HTTP, snapshots) still use the
+ * bank directly, and an uncontended monitor costs little. For the same reason frames
+ * are not merged across operations: a direct change appended between two of them
+ * must land in the journal in the order the account saw it.
+ */
+class LedgerPipeline implements Closeable {
+    static final int DEFAULT_SIZE = 1 << 14;
+    private static final int MAX_BATCH = 1024;
+    private static final int SPINS = 200;
+
+    private static final byte OPEN_ACCOUNT = 1;
+    private static final byte DEPOSIT = 2;
+    private static final byte WITHDRAW = 3;
+    private static final byte TRANSFER = 4;
+    private static final byte MONTHLY_UPDATE = 5;
+    private static final long CLOSED = Long.MIN_VALUE; // set in claimed by close()
+
+    // called on the replier thread once the operation is applied and durable
+    interface Completion {
+        void completed(long result, RuntimeException error);
+    }
+
+    private static final class Slot {
+        byte op;
+        long account;
+        long other;
+        long amount;
+        Account opened;
+        Completion done;
+        long result;
+        RuntimeException error;
+    }
+
+    private final Bank bank;
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLongArray published; // per slot, the sequence last published into it
+    private final AtomicLong claimed = new AtomicLong(); // next sequence to hand out, plus CLOSED
+    private final Stage writer;
+    private final Stage journal;
+    private final Stage replier;
+    private volatile long stopAfter = Long.MAX_VALUE;
+    private final ThreadLocal<Waiter> waiters = ThreadLocal.withInitial(Waiter::new);
+
+    LedgerPipeline(Bank bank, int size) {
+        if (Integer.bitCount(size) != 1) throw new IllegalArgumentException("Ring size must be a power of two: " + size);
+        this.bank = bank;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) slots[i] = new Slot();
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) published.set(i, -1);
+        this.replier = new Stage("ledger-replier", null);
+        this.journal = new Stage("ledger-journal", replier);
+        this.writer = new Stage("ledger-writer", journal);
+        writer.start();
+        journal.start();
+        replier.start();
+    }
+
+    /* Operations: the same as on Bank, but applied by the writer thread */
+
+    long openAccount(Account acc) {
+        return call(OPEN_ACCOUNT, 0, 0, 0, acc);
+    }
+
+    void deposit(long id, long amount) {
+        call(DEPOSIT, id, 0, amount, null);
+    }
+
+    void withdraw(long id, long amount) {
+        call(WITHDRAW, id, 0, amount, null);
+    }
+
+    void transfer(long fromId, long toId, long amount) {
+        call(TRANSFER, fromId, toId, amount, null);
+    }
+
+    void monthlyUpdate() {
+        call(MONTHLY_UPDATE, 0, 0, 0, null);
+    }
+
+    // returns once the ring has room; done runs on the replier thread
+    void submitTransfer(long fromId, long toId, long amount, Completion done) {
+        publish(TRANSFER, fromId, toId, amount, null, done);
+    }
+
+    // blocks the caller until its operation is durable; errors are rethrown here
+    private long call(byte op, long account, long other, long amount, Account opened) {
+        Waiter w = waiters.get();
+        w.done = false;
+        publish(op, account, other, amount, opened, w);
+        w.await();
+        if (w.error != null) throw w.error;
+        return w.result;
+    }
+
+    private void publish(byte op, long account, long other, long amount, Account opened, Completion done) {
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq < 0) throw new IllegalStateException("The ledger pipeline is closed.");
+        } while (!claimed.compareAndSet(seq, seq + 1));
+        for (int spins = 0; seq - slots.length > replier.cursor; spins++) {
+            idle(spins); // the ring is full; wait for the replier to free a slot
+        }
+        Slot s = slots[(int) seq & mask];
+        s.op = op;
+        s.account = account;
+        s.other = other;
+        s.amount = amount;
+        s.opened = opened;
+        s.done = done;
+        s.result = 0;
+        s.error = null;
+        published.set((int) seq & mask, seq);
+        writer.wake();
+    }
+
+    private static void idle(int spins) {
+        if (spins < SPINS) Thread.onSpinWait();
+        else if (spins < 2 * SPINS) Thread.yield();
+        else LockSupport.parkNanos(10_000);
+    }
+
+    /* Stages */
+
+    // highest sequence that stage s may process, at least from - 1
+    private long available(Stage s, long from) {
+        if (s == writer) {
+            long seq = from;
+            long last = Math.min(from + MAX_BATCH - 1, stopAfter);
+            while (seq <= last && published.get((int) seq & mask) == seq) seq++;
+            return seq - 1;
+        }
+        return Math.min(s == journal ? writer.cursor : journal.cursor, stopAfter);
+    }
+
+    private void process(Stage s, long from, long to) {
+        if (s == writer) {
+            for (long seq = from; seq <= to; seq++) apply(slots[(int) seq & mask]);
+        } else if (s == journal) {
+            bank.syncJournal();
+        } else {
+            for (long seq = from; seq <= to; seq++) {
+                Slot slot = slots[(int) seq & mask];
+                Completion done = slot.done;
+                slot.done = null;
+                slot.opened = null;
+                done.completed(slot.result, slot.error);
+            }
+        }
+    }
+
+    private void apply(Slot s) {
+        try {
+            switch (s.op) {
+                case OPEN_ACCOUNT:
+                    s.result = bank.openAccount(s.opened).getId();
+                    break;
+                case DEPOSIT:
+                    bank.deposit(s.account, s.amount);
+                    break;
+                case WITHDRAW:
+                    bank.withdraw(s.account, s.amount);
+                    break;
+                case TRANSFER:
+                    bank.transfer(s.account, s.other, s.amount);
+                    break;
+                default:
+                    bank.monthlyUpdate();
+                    break;
+            }
+        } catch (RuntimeException e) {
+            s.error = e;
+        }
+    }
+
+    private final class Stage extends Thread {
+        private final Stage next;
+        volatile long cursor = -1; // last sequence this stage has finished
+        private volatile boolean sleeping;
+
+        Stage(String name, Stage next) {
+            super(name);
+            this.next = next;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            if (this == writer) bank.beginDeferredSync(); // the journal stage syncs for it
+            long from = 0;
+            while (from <= stopAfter) {
+                long to = available(this, from);
+                if (to < from) {
+                    await(from);
+                    continue;
+                }
+                process(this, from, to);
+                cursor = to;
+                if (next != null) next.wake();
+                from = to + 1;
+            }
+        }
+
+        private void await(long from) {
+            for (int spins = 0; spins < SPINS; spins++) {
+                if (available(this, from) >= from || from > stopAfter) return;
+                Thread.onSpinWait();
+            }
+            sleeping = true;
+            if (available(this, from) < from && from <= stopAfter) LockSupport.park(this);
+            sleeping = false;
+        }
+
+        void wake() {
+            if (sleeping) LockSupport.unpark(this);
+        }
+    }
+
+    // a calling thread waiting for its own operation
+    private static final class Waiter implements Completion {
+        private final Thread thread = Thread.currentThread();
+        volatile boolean done;
+        private volatile boolean parked;
+        long result;
+        RuntimeException error;
+
+        @Override
+        public void completed(long result, RuntimeException error) {
+            this.result = result;
+            this.error = error;
+            done = true;
+            if (parked) LockSupport.unpark(thread);
+        }
+
+        void await() {
+            for (int spins = 0; spins < SPINS && !done; spins++) Thread.onSpinWait();
+            parked = true;
+            while (!done) LockSupport.park(this);
+            parked = false;
+        }
+    }
+
+    // everything published before this call is still applied and answered
+    @Override
+    public void close() {
+        stopAfter = (claimed.getAndUpdate(seq -> seq | CLOSED) & ~CLOSED) - 1;
+        for (Stage s : new Stage[] {writer, journal, replier}) {
+            LockSupport.unpark(s);
+            try {
+                s.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
+
+/* -----------------------------
+   CommandProcessor: compact text commands
+   ----------------------------- */
+
+/*
+ * One command per line, words separated by blanks; amounts use the Money format (12.50):
+ *
+ *   create savings <owner...> <deposit> <annualRate>
+ *   create checking <owner...> <deposit> <freeWithdrawals> <fee>
+ *   deposit <id> <amount>          withdraw <id> <amount>
+ *   transfer <from> <to> <amount>  balance <id>
+ *   monthly                        stats      metrics
+ *   owner <name...>                owner <prefix>*
+ *
+ * A ShardRouter talks to its shards with four more (see Bank.prepareTransfer):
+ *
+ *   open <id> savings|checking ... (as create, with the id chosen by the router)
+ *   prepare <tx> debit|credit <account> <counterparty> <amount>
+ *   commit <tx>                    abort <tx>
+ *
+ * Each command gets exactly one reply line, "OK [result]" or "ERR <code> <message>"
+ * (stats and metrics reply "OK" followed by report lines, then an empty line). owner
+ * replies with the ids of the matching accounts, at most OWNER_MATCHES for a prefix.
+ * Ledger operations go through the AdmissionController; when it turns one away the
+ * reply is ERR OVERLOADED. With a LedgerPipeline, the mutating ones are applied by its
+ * writer thread instead of the calling one.
+ * Blank lines and lines starting with # are skipped and get no reply. The processor
+ * keeps no state of its own, so one instance can serve many threads.
+ */
+interface CommandHandler {
+    // appends the reply (without a line break); returns false for skipped lines
+    boolean execute(String line, StringBuilder reply);
+}
+
+class CommandProcessor implements CommandHandler {
+    static final String ERR_SYNTAX = "SYNTAX";
+    static final String ERR_UNKNOWN_COMMAND = "UNKNOWN_COMMAND";
+    static final String ERR_NO_ACCOUNT = "NO_ACCOUNT";
+    static final String ERR_INSUFFICIENT_FUNDS = "INSUFFICIENT_FUNDS";
+    static final String ERR_REJECTED = "REJECTED";
+    static final String ERR_OVERLOADED = "OVERLOADED";
+    static final String ERR_UNAVAILABLE = "UNAVAILABLE"; // a shard did not answer (ShardRouter)
+    static final String ERR_UNSUPPORTED = "UNSUPPORTED"; // not possible with this account store
+    static final String ERR_INTERNAL = "INTERNAL";
+    static final int OWNER_MATCHES = 100;
+
+    private final Bank bank;
+    private final AdmissionController admission;
+    private final LedgerPipeline pipeline; // null: operations run on the calling thread
+
+    CommandProcessor(Bank bank) {
+        this(bank, AdmissionController.unlimited(bank));
+    }
+
+    CommandProcessor(Bank bank, AdmissionController admission) {
+        this(bank, admission, null);
+    }
+
+    CommandProcessor(Bank bank, AdmissionController admission, LedgerPipeline pipeline) {
+        this.bank = bank;
+        this.admission = admission;
+        this.pipeline = pipeline;
+    }
+
+    @Override
+    public boolean execute(String line, StringBuilder reply) {
+        String[] w = words(line);
+        if (w.length == 0 || w[0].startsWith("#")) return false;
+        try {
+            switch (w[0].toLowerCase(Locale.ROOT)) {
+                case "create":
+                    reply.append("OK ").append(create(w));
+                    break;
+                case "deposit": {
+                    arity(w, 3);
+                    long id = Long.parseLong(w[1]);
+                    long amount = Money.parse(w[2]);
+                    admission.run("deposit", () -> {
+                        if (pipeline != null) pipeline.deposit(id, amount);
+                        else bank.deposit(id, amount);
+                    });
+                    reply.append("OK");
+                    break;
+                }
+                case "withdraw": {
+                    arity(w, 3);
+                    long id = Long.parseLong(w[1]);
+                    long amount = Money.parse(w[2]);
+                    admission.run("withdraw", () -> {
+                        if (pipeline != null) pipeline.withdraw(id, amount);
+                        else bank.withdraw(id, amount);
+                    });
+                    reply.append("OK");
+                    break;
+                }
+                case "transfer": {
+                    arity(w, 4);
+                    long from = Long.parseLong(w[1]);
+                    long to = Long.parseLong(w[2]);
+                    long amount = Money.parse(w[3]);
+                    admission.run("transfer", () -> {
+                        if (pipeline != null) pipeline.transfer(from, to, amount);
+                        else bank.transfer(from, to, amount);
+                    });
+                    reply.append("OK");
+                    break;
+                }
+                case "balance": {
+                    arity(w, 2);
+                    long id = Long.parseLong(w[1]);
+                    long balance = admission.call("balance", () -> bank.balance(id));
+                    reply.append("OK ");
+                    Money.appendTo(reply, balance);
+                    break;
+                }
+                case "monthly":
+                    arity(w, 1);
+                    admission.run("monthly", () -> {
+                        if (pipeline != null) pipeline.monthlyUpdate();
+                        else bank.monthlyUpdate();
+                    });
+                    reply.append("OK ").append(bank.calendar().current());
+                    break;
+                case "stats":
+                    arity(w, 1);
+                    reply.append("OK\n").append(admission.stats()).append('\n');
+                    break;
+                case "metrics":
+                    arity(w, 1);
+                    reply.append("OK\n").append(bank.metrics().report()).append('\n');
+                    break;
+                case "owner": {
+                    if (w.length < 2) throw new NumberFormatException("Usage: owner <name> | owner <prefix>*");
+                    String name = String.join(" ", Arrays.asList(w).subList(1, w.length));
+                    List<Account> found = name.endsWith("*")
+                            ? bank.findByOwnerPrefix(name.substring(0, name.length() - 1), OWNER_MATCHES)
+                            : bank.findByOwner(name);
+                    reply.append("OK");
+                    for (Account a : found) reply.append(' ').append(a.getId());
+                    break;
+                }
+                case "open":
+                    reply.append("OK ").append(open(w));
+                    break;
+                case "prepare": {
+                    arity(w, 6);
+                    long tx = Long.parseLong(w[1]);
+                    boolean debit = "debit".equalsIgnoreCase(w[2]);
+                    if (!debit && !"credit".equalsIgnoreCase(w[2])) throw new NumberFormatException("Expected debit or credit: " + w[2]);
+                    long account = Long.parseLong(w[3]);
+                    long counterparty = Long.parseLong(w[4]);
+                    long amount = Money.parse(w[5]);
+                    admission.run("prepare", () -> bank.prepareTransfer(tx, debit, account, counterparty, amount));
+                    reply.append("OK");
+                    break;
+                }
+                // not admission-controlled: they finish work the ledger already accepted
+                case "commit":
+                    arity(w, 2);
+                    bank.commitTransfer(Long.parseLong(w[1]));
+                    reply.append("OK");
+                    break;
+                case "abort":
+                    arity(w, 2);
+                    bank.abortTransfer(Long.parseLong(w[1]));
+                    reply.append("OK");
+                    break;
+                default:
+                    return error(reply, ERR_UNKNOWN_COMMAND, w[0]);
+            }
+        } catch (AccountNotFoundException e) {
+            return error(reply, ERR_NO_ACCOUNT, e.getMessage());
+        } catch (InsufficientFundsException e) {
+            return error(reply, ERR_INSUFFICIENT_FUNDS, e.getMessage());
+        } catch (NumberFormatException e) {
+            return error(reply, ERR_SYNTAX, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            return error(reply, ERR_REJECTED, e.getMessage());
+        } catch (OverloadedException e) {
+            return error(reply, ERR_OVERLOADED, e.getMessage());
+        } catch (RuntimeException e) {
+            return error(reply, ERR_INTERNAL, String.valueOf(e));
+        }
+        return true;
+    }
+
+    private long create(String[] w) {
+        Account acc = newAccount(w, 1, 0);
+        return admission.call("create", () -> pipeline != null ? pipeline.openAccount(acc) : bank.openAccount(acc).getId());
+    }
+
+    // repeating it is harmless, so the router can retry when a reply goes missing
+    private long open(String[] w) {
+        if (w.length < 2) throw new NumberFormatException("Usage: open <id> savings|checking <owner> <deposit> <rate | free fee>");
+        long id = Long.parseLong(w[1]);
+        if (id <= 0) throw new NumberFormatException("Account ids are positive: " + id);
+        Account acc = newAccount(w, 2, id);
+        Account existing = bank.getAccount(id);
+        if (existing != null) {
+            if (!existing.getOwnerName().equals(acc.getOwnerName())) throw new IllegalArgumentException("Account id " + id + " is taken.");
+            return id;
+        }
+        return admission.call("open", () -> pipeline != null ? pipeline.openAccount(acc) : bank.openAccount(acc).getId());
+    }
+
+    // w[type] is savings or checking; the owner name is everything between it and the
+    // trailing numbers. An id of 0 takes the next free one.
+    private static Account newAccount(String[] w, int type, long id) {
+        boolean savings = w.length > type && "savings".equalsIgnoreCase(w[type]);
+        int params = savings ? 2 : 3;
+        if (w.length < type + 2 + params || !savings && !"checking".equalsIgnoreCase(w[type])) {
+            throw new NumberFormatException("Usage: " + w[0] + (id != 0 ? " <id>" : "")
+                    + " savings|checking <owner> <deposit> <rate | free fee>");
+        }
+        String owner = String.join(" ", Arrays.asList(w).subList(type + 1, w.length - params));
+        int p = w.length - params;
+        long deposit = Money.parse(w[p]);
+        if (savings) {
+            double rate = Double.parseDouble(w[p + 1]);
+            return id == 0 ? new SavingsAccount(owner, deposit, rate) : new SavingsAccount(id, owner, deposit, rate);
+        }
+        int free = Integer.parseInt(w[p + 1]);
+        long fee = Money.parse(w[p + 2]);
+        return id == 0 ? new CheckingAccount(owner, deposit, free, fee) : new CheckingAccount(id, owner, deposit, free, fee);
+    }
+
+    static void arity(String[] w, int n) {
+        if (w.length != n) throw new NumberFormatException("Expected " + (n - 1) + " argument(s) for " + w[0]);
+    }
+
+    private static boolean error(StringBuilder reply, String code, String message) {
+        reply.append("ERR ").append(code);
+        if (message != null) reply.append(' ').append(message);
+        return true;
+    }
+
+    // splits on runs of blanks without a regex
+    static String[] words(String line) {
+        List<String> out = new ArrayList<>(6);
+        int n = line.length();
+        int i = 0;
+        while (i < n) {
+            while (i < n && Character.isWhitespace(line.charAt(i))) i++;
+            int start = i;
+            while (i < n && !Character.isWhitespace(line.charAt(i))) i++;
+            if (i > start) out.add(line.substring(start, i));
+        }
+        return out.toArray(new String[0]);
+    }
+}
+
+/* -----------------------------
+   BatchRunner: non-interactive command files
+   ----------------------------- */
+
+/*
+ * Feeds a command file (or stdin) through CommandProcessor and writes one reply line
+ * per command. Replies are collected in a 64 KB buffer. Journal syncs are deferred
+ * while the buffer fills and done once before it is written, so many operations share
+ * one fsync and no "OK" is shown before the operation is durable.
+ */
+class BatchRunner {
+    private static final int OUTPUT_BUFFER = 1 << 16;
+
+    static String run(Bank bank, BufferedReader in, Writer out) throws IOException {
+        CommandProcessor processor = new CommandProcessor(bank);
+        StringBuilder replies = new StringBuilder(OUTPUT_BUFFER + 256);
+        long started = System.nanoTime();
+        long commands = 0;
+        long errors = 0;
+        bank.beginDeferredSync();
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int mark = replies.length();
+                if (!processor.execute(line, replies)) continue;
+                commands++;
+                if (replies.charAt(mark) == 'E') errors++;
+                replies.append('\n');
+                if (replies.length() >= OUTPUT_BUFFER) drain(bank, replies, out);
+            }
+            drain(bank, replies, out);
+        } finally {
+            bank.endDeferredSync();
+        }
+        out.flush();
+        double seconds = (System.nanoTime() - started) / 1e9;
+        return String.format("Processed %d commands (%d errors) in %.2f s, %.0f commands/sec.",
+                commands, errors, seconds, commands / Math.max(seconds, 1e-9));
+    }
+
+    private static void drain(Bank bank, StringBuilder replies, Writer out) throws IOException {
+        bank.syncJournal();
+        out.append(replies);
+        replies.setLength(0);
+    }
+
+    // "-" reads stdin
+    static BufferedReader open(String input) throws IOException {
+        if ("-".equals(input)) return new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), 1 << 16);
+        return Files.newBufferedReader(Paths.get(input), StandardCharsets.UTF_8);
+    }
+}
+
+/* -----------------------------
+   LineServer: TCP front-end speaking the command protocol
+   ----------------------------- */
+
+/*
+ * Serves the CommandProcessor protocol over TCP: the client sends command lines, the
+ * server answers each with one reply line, and "quit" closes the connection. Clients
+ * may pipeline; replies are flushed once no further request is already buffered.
+ *
+ * Every connection gets its own thread. On Java 21+ these are virtual threads, so tens
+ * of thousands of idle or slow clients cost little more than their sockets. Older
+ * runtimes fall back to a cached pool of platform threads, which works the same way but
+ * needs one real thread per open connection.
+ */
+class LineServer implements Closeable {
+    private final ServerSocket socket;
+    private final CommandHandler processor;
+    private final ExecutorService connections;
+    private final LongAdder served = new LongAdder();
+    private final AtomicLong open = new AtomicLong();
+
+    LineServer(Bank bank, int port, AdmissionController admission) throws IOException {
+        this(new CommandProcessor(bank, admission), port);
+    }
+
+    LineServer(CommandHandler processor, int port) throws IOException {
+        this.socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 4096);
+        this.processor = processor;
+        this.connections = newConnectionExecutor();
+    }
+
+    int port() { return socket.getLocalPort(); }
+
+    // accepts until close() is called
+    void serve() throws IOException {
+        while (!socket.isClosed()) {
+            Socket client;
+            try {
+                client = socket.accept();
+            } catch (SocketException e) {
+                if (socket.isClosed()) return;
+                throw e;
+            }
+            open.incrementAndGet();
+            connections.execute(() -> handle(client));
+        }
+    }
+
+    private void handle(Socket client) {
+        try (Socket c = client) {
+            c.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(c.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(c.getOutputStream(), StandardCharsets.UTF_8));
+            StringBuilder reply = new StringBuilder(64);
+            String line;
+            while ((line = in.readLine()) != null) {
+                if ("quit".equalsIgnoreCase(line.trim())) break;
+                reply.setLength(0);
+                if (!processor.execute(line, reply)) continue;
+                out.append(reply).append('\n');
+                served.increment();
+                if (!in.ready()) out.flush();
+            }
+            out.flush();
+        } catch (IOException e) {
+            // client went away; nothing to clean up beyond the socket
+        } finally {
+            open.decrementAndGet();
+        }
+    }
+
+    String stats() {
+        return String.format("connections=%d commands=%d", open.get(), served.sum());
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        connections.shutdown();
+        try {
+            connections.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() when the runtime has it (Java 21+)
+    static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(null, r, "connection", 256 * 1024);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
+
+/* -----------------------------
+   ShardRouter: accounts spread over several bank processes
+   ----------------------------- */
+
+/*
+ * Consistent hashing of account ids onto shard addresses. Every shard gets
+ * VIRTUAL_NODES points on a 64-bit ring and an id belongs to the first point at or
+ * after its own hash, so adding a shard to a ring moves only about 1/N of the ids.
+ */
+class HashRing {
+    private static final int VIRTUAL_NODES = 128;
+
+    private final List<String> shards;
+    private final TreeMap<Long, String> points = new TreeMap<>();
+
+    HashRing(List<String> shards) {
+        if (shards.isEmpty()) throw new IllegalArgumentException("A ring needs at least one shard.");
+        this.shards = List.copyOf(shards);
+        for (String shard : shards) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) points.put(hash(shard + "#" + v), shard);
+        }
+    }
+
+    String shardOf(long id) {
+        Map.Entry<Long, String> e = points.ceilingEntry(mix(id));
+        return (e != null ? e : points.firstEntry()).getValue();
+    }
+
+    List<String> shards() { return shards; }
+
+    // FNV-1a, then mixed so that similar names land far apart
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    // the MurmurHash3 finalizer: sequential ids spread evenly over the ring
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb1a3fe1a85ecL;
+        return h ^ (h >>> 33);
+    }
+}
+
+/*
+ * The router's durable memory, one text line per record:
+ *
+ *   RING <firstId> <host:port,...>   ids from firstId on use this shard list
+ *   IDS <highWater>                  ids below it may have been handed out
+ *   TXS <next>                       transaction ids below it are used
+ *   BEGIN <tx> <from> <to> <amount>  a cross-shard transfer starts (amount in cents)
+ *   COMMIT <tx>                      both shards prepared: the transfer will happen
+ *   ABORT <tx>                       it will not
+ *   END <tx>                         both shards know the outcome
+ *
+ * BEGIN, COMMIT, RING and IDS are forced to disk before the router acts on them;
+ * threads that append at the same time share one force. A transfer without a COMMIT
+ * is aborted after a restart, so ABORT and END need not be forced. Opening the log
+ * rewrites it with only what is still needed.
+ */
+class CoordinatorLog implements Closeable {
+    static final class Tx {
+        final long id;
+        final long from;
+        final long to;
+        final long amount;
+        volatile Boolean outcome; // null while undecided, then commit or abort
+
+        Tx(long id, long from, long to, long amount) {
+            this.id = id;
+            this.from = from;
+            this.to = to;
+            this.amount = amount;
+        }
+    }
+
+    private final Path file;
+    private final NavigableMap<Long, List<String>> rings = new TreeMap<>();
+    private final Map<Long, Tx> unfinished = new LinkedHashMap<>(); // as read at open
+    private long idHighWater;
+    private final AtomicLong nextTx = new AtomicLong(1);
+    private final FileChannel channel;
+    private final Object forceLock = new Object();
+    private long written;           // guarded by this
+    private volatile long forced;
+
+    CoordinatorLog(Path file) throws IOException {
+        this.file = file;
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) read(line.trim().split(" "));
+        }
+        compact();
+        this.channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.written = channel.size();
+        this.forced = written;
+    }
+
+    private void read(String[] r) {
+        switch (r[0]) {
+            case "RING":
+                rings.put(Long.parseLong(r[1]), Arrays.asList(r[2].split(",")));
+                break;
+            case "IDS":
+                idHighWater = Math.max(idHighWater, Long.parseLong(r[1]));
+                break;
+            case "TXS":
+                nextTx.accumulateAndGet(Long.parseLong(r[1]), Math::max);
+                break;
+            case "BEGIN": {
+                long tx = Long.parseLong(r[1]);
+                unfinished.put(tx, new Tx(tx, Long.parseLong(r[2]), Long.parseLong(r[3]), Long.parseLong(r[4])));
+                nextTx.accumulateAndGet(tx + 1, Math::max);
+                break;
+            }
+            case "COMMIT":
+            case "ABORT": {
+                Tx t = unfinished.get(Long.parseLong(r[1]));
+                if (t != null) t.outcome = "COMMIT".equals(r[0]);
+                break;
+            }
+            case "END":
+                unfinished.remove(Long.parseLong(r[1]));
+                break;
+            default:
+                break; // a line torn by a crash; the forced records before it are intact
+        }
+    }
+
+    // written to a temporary file and moved over the old one, so a crash leaves one or the other
+    private void compact() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Long, List<String>> e : rings.entrySet()) {
+            sb.append("RING ").append(e.getKey()).append(' ').append(String.join(",", e.getValue())).append('\n');
+        }
+        sb.append("IDS ").append(idHighWater).append('\n');
+        sb.append("TXS ").append(nextTx.get()).append('\n');
+        for (Tx t : unfinished.values()) {
+            sb.append("BEGIN ").append(t.id).append(' ').append(t.from).append(' ').append(t.to).append(' ').append(t.amount).append('\n');
+            if (t.outcome != null) sb.append(t.outcome ? "COMMIT " : "ABORT ").append(t.id).append('\n');
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer b = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (b.hasRemaining()) out.write(b);
+            out.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    NavigableMap<Long, List<String>> rings() { return rings; }
+    long idHighWater() { return idHighWater; }
+
+    // transfers a previous run left unfinished
+    Collection<Tx> unfinished() { return unfinished.values(); }
+
+    void ring(long firstId, List<String> shards) throws IOException {
+        rings.put(firstId, List.copyOf(shards));
+        append("RING " + firstId + " " + String.join(",", shards), true);
+    }
+
+    void ids(long highWater) throws IOException {
+        append("IDS " + highWater, true);
+    }
+
+    Tx begin(long from, long to, long amount) throws IOException {
+        Tx t = new Tx(nextTx.getAndIncrement(), from, to, amount);
+        append("BEGIN " + t.id + " " + from + " " + to + " " + amount, true);
+        return t;
+    }
+
+    void decide(Tx t, boolean commit) throws IOException {
+        append((commit ? "COMMIT " : "ABORT ") + t.id, commit);
+        t.outcome = commit;
+    }
+
+    void end(Tx t) throws IOException {
+        append("END " + t.id, false);
+    }
+
+    private void append(String record, boolean force) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8));
+        long mine;
+        synchronized (this) {
+            while (b.hasRemaining()) channel.write(b);
+            mine = written += b.capacity();
+        }
+        if (force && forced < mine) {
+            synchronized (forceLock) {
+                if (forced < mine) {
+                    long upTo;
+                    synchronized (this) { upTo = written; }
+                    channel.force(false);
+                    forced = upTo;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+}
+
+/*
+ * Connections to one shard, speaking the CommandProcessor protocol. Idle connections
+ * are pooled; one that fails or times out is dropped, since a late reply would
+ * otherwise be read as the answer to the next command.
+ */
+class ShardClient implements Closeable {
+    private static final int CONNECT_TIMEOUT_MS = 2_000;
+    private static final int READ_TIMEOUT_MS = 10_000;
+
+    private final String address;
+    private final InetSocketAddress target;
+    private final Deque<Connection> idle = new ConcurrentLinkedDeque<>();
+
+    private static final class Connection {
+        final Socket socket;
+        final BufferedReader in;
+        final Writer out;
+
+        Connection(InetSocketAddress target) throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(target, CONNECT_TIMEOUT_MS);
+                socket.setSoTimeout(READ_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+    }
+
+    // host:port
+    ShardClient(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("Expected host:port, got " + address);
+        this.address = address;
+        this.target = new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    String address() { return address; }
+
+    String call(String command) throws IOException {
+        return call(command, false);
+    }
+
+    // report: the reply may be "OK" followed by report lines up to an empty line
+    String call(String command, boolean report) throws IOException {
+        Connection c = idle.pollFirst();
+        if (c == null) c = new Connection(target);
+        try {
+            c.out.write(command);
+            c.out.write('\n');
+            c.out.flush();
+            String reply = c.in.readLine();
+            if (reply == null) throw new EOFException("Shard " + address + " closed the connection");
+            if (report && "OK".equals(reply)) {
+                StringBuilder sb = new StringBuilder(reply);
+                String line;
+                while ((line = c.in.readLine()) != null && !line.isEmpty()) sb.append('\n').append(line);
+                reply = sb.toString();
+            }
+            idle.addFirst(c);
+            return reply;
+        } catch (IOException e) {
+            c.socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        Connection c;
+        while ((c = idle.pollFirst()) != null) c.socket.close();
+    }
+}
+
+/*
+ * Front-end of a partitioned bank: clients speak the usual command protocol to the
+ * router, which hands out account ids, sends every command to the shard that owns the
+ * account, and runs transfers between shards in two phases:
+ *
+ *   1. BEGIN is forced to the coordinator log, then the source shard is asked to
+ *      prepare (debit now) and the destination shard to prepare (check the account).
+ *   2. If both agree, COMMIT is forced and both shards are told to commit; otherwise
+ *      both are told to abort, which gives the source its money back.
+ *
+ * Shards journal their prepared transfers, so a decided transfer always completes:
+ * a background thread retries the second phase until both shards have answered, and
+ * after a restart it aborts transfers that never reached COMMIT and finishes the rest.
+ * Until then the money is out of the source and not yet in the destination.
+ *
+ * Capacity grows by starting the router with more shards. Existing accounts stay where
+ * they are: the new shard list becomes a new ring generation, used for ids handed out
+ * from then on, so shards can be added but not removed. monthly and owner go to every
+ * shard; shards must only be reached through the router, which owns the ids.
+ */
+class ShardRouter implements CommandHandler, Closeable {
+    private static final long RESOLVE_INTERVAL_MS = 1_000;
+
+    private final CoordinatorLog log;
+    private final NavigableMap<Long, HashRing> rings = new TreeMap<>(); // by first id
+    private final Map<String, ShardClient> clients = new LinkedHashMap<>();
+    private final Map<Long, CoordinatorLog.Tx> undelivered = new ConcurrentHashMap<>(); // decided, not yet ended
+    private final LongAdder committed = new LongAdder();
+    private final LongAdder aborted = new LongAdder();
+    private final ScheduledExecutorService resolver;
+
+    ShardRouter(List<String> shards, CoordinatorLog log) throws IOException {
+        this.log = log;
+        AccountIds.reserveBelow(log.idHighWater());
+        List<String> current = log.rings().isEmpty() ? null : log.rings().lastEntry().getValue();
+        if (!shards.isEmpty() && !shards.equals(current)) log.ring(AccountIds.highWaterMark(), shards);
+        if (log.rings().isEmpty()) throw new IllegalArgumentException("No shards given (--shards host:port,...).");
+        for (Map.Entry<Long, List<String>> e : log.rings().entrySet()) {
+            rings.put(e.getKey(), new HashRing(e.getValue()));
+            for (String s : e.getValue()) clients.computeIfAbsent(s, ShardClient::new);
+        }
+        AccountIds.setListener(highWater -> {
+            try {
+                log.ids(highWater);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        for (CoordinatorLog.Tx t : log.unfinished()) {
+            if (t.outcome == null) log.decide(t, false);
+            undelivered.put(t.id, t);
+        }
+        this.resolver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "transfer-resolver");
+            t.setDaemon(true);
+            return t;
+        });
+        resolver.scheduleWithFixedDelay(this::resolve, 0, RESOLVE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private ShardClient shardOf(long id) {
+        Map.Entry<Long, HashRing> ring = rings.floorEntry(id);
+        if (ring == null) ring = rings.firstEntry(); // ids from before the first ring was recorded
+        return clients.get(ring.getValue().shardOf(id));
+    }
+
+    @Override
+    public boolean execute(String line, StringBuilder reply) {
+        String[] w = CommandProcessor.words(line);
+        if (w.length == 0 || w[0].startsWith("#")) return false;
+        try {
+            switch (w[0].toLowerCase(Locale.ROOT)) {
+                case "create": {
+                    long id = AccountIds.next();
+                    reply.append(shardOf(id).call("open " + id + line.substring(line.indexOf(w[0]) + w[0].length())));
+                    break;
+                }
+                case "deposit":
+                case "withdraw":
+                    CommandProcessor.arity(w, 3);
+                    reply.append(shardOf(Long.parseLong(w[1])).call(line));
+                    break;
+                case "balance":
+                    CommandProcessor.arity(w, 2);
+                    reply.append(shardOf(Long.parseLong(w[1])).call(line));
+                    break;
+                case "transfer": {
+                    CommandProcessor.arity(w, 4);
+                    long from = Long.parseLong(w[1]);
+                    long to = Long.parseLong(w[2]);
+                    long amount = Money.parse(w[3]);
+                    ShardClient source = shardOf(from);
+                    ShardClient destination = shardOf(to);
+                    if (source == destination) {
+                        reply.append(source.call(line));
+                    } else {
+                        transfer(source, destination, from, to, amount, reply);
+                    }
+                    break;
+                }
+                case "monthly":
+                    CommandProcessor.arity(w, 1);
+                    monthly(reply);
+                    break;
+                case "owner":
+                    owner(line, w, reply);
+                    break;
+                case "stats":
+                    CommandProcessor.arity(w, 1);
+                    reply.append("OK\n").append(stats()).append('\n');
+                    break;
+                case "metrics":
+                    CommandProcessor.arity(w, 1);
+                    reply.append("OK");
+                    for (ShardClient c : clients.values()) {
+                        String r = c.call(line, true);
+                        reply.append("\nshard ").append(c.address()).append(r.startsWith("OK") ? r.substring(2) : "\n" + r);
+                    }
+                    reply.append('\n');
+                    break;
+                default:
+                    return error(reply, CommandProcessor.ERR_UNKNOWN_COMMAND, w[0]);
+            }
+        } catch (NumberFormatException e) {
+            return error(reply, CommandProcessor.ERR_SYNTAX, e.getMessage());
+        } catch (IOException | UncheckedIOException e) {
+            return error(reply, CommandProcessor.ERR_UNAVAILABLE, String.valueOf(e));
+        } catch (RuntimeException e) {
+            return error(reply, CommandProcessor.ERR_INTERNAL, String.valueOf(e));
+        }
+        return true;
+    }
+
+    private static boolean error(StringBuilder reply, String code, String message) {
+        reply.append("ERR ").append(code);
+        if (message != null) reply.append(' ').append(message);
+        return true;
+    }
+
+    private void transfer(ShardClient source, ShardClient destination, long from, long to, long amount,
+                          StringBuilder reply) throws IOException {
+        if (amount <= 0) {
+            error(reply, CommandProcessor.ERR_REJECTED, "Amount must be positive.");
+            return;
+        }
+        CoordinatorLog.Tx t = log.begin(from, to, amount);
+        String money = Money.format(amount);
+        String refused;
+        try {
+            refused = source.call("prepare " + t.id + " debit " + from + " " + to + " " + money);
+            if (refused.startsWith("OK")) {
+                refused = destination.call("prepare " + t.id + " credit " + to + " " + from + " " + money);
+                if (refused.startsWith("OK")) refused = null;
+            } else {
+                // the source refused, so nothing was prepared anywhere
+                log.decide(t, false);
+                log.end(t);
+                aborted.increment();
+                reply.append(refused);
+                return;
+            }
+        } catch (IOException e) {
+            refused = "ERR " + CommandProcessor.ERR_UNAVAILABLE + " " + e;
+        }
+        boolean commit = refused == null;
+        log.decide(t, commit);
+        undelivered.put(t.id, t);
+        deliver(t);
+        reply.append(commit ? "OK" : refused);
+    }
+
+    // second phase; false leaves the transfer for the resolver
+    private boolean deliver(CoordinatorLog.Tx t) {
+        String command = (t.outcome ? "commit " : "abort ") + t.id;
+        try {
+            String a = shardOf(t.from).call(command);
+            String b = shardOf(t.to).call(command);
+            if (!a.startsWith("OK") || !b.startsWith("OK")) return false;
+            if (undelivered.remove(t.id) == null) return true; // the resolver got there first
+            log.end(t);
+            (t.outcome ? committed : aborted).increment();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void resolve() {
+        for (CoordinatorLog.Tx t : undelivered.values()) deliver(t); // a shard still down is retried next round
+    }
+
+    private void monthly(StringBuilder reply) throws IOException {
+        String first = null;
+        for (ShardClient c : clients.values()) {
+            String r = c.call("monthly");
+            if (!r.startsWith("OK")) {
+                reply.append(r);
+                return;
+            }
+            if (first == null) first = r;
+        }
+        reply.append(first);
+    }
+
+    private void owner(String line, String[] w, StringBuilder reply) throws IOException {
+        if (w.length < 2) throw new NumberFormatException("Usage: owner <name> | owner <prefix>*");
+        TreeSet<Long> ids = new TreeSet<>();
+        for (ShardClient c : clients.values()) {
+            String r = c.call(line);
+            if (!r.startsWith("OK")) {
+                reply.append(r);
+                return;
+            }
+            for (String id : CommandProcessor.words(r.substring(2))) ids.add(Long.parseLong(id));
+        }
+        reply.append("OK");
+        int n = 0;
+        for (long id : ids) {
+            if (w[w.length - 1].endsWith("*") && n++ == CommandProcessor.OWNER_MATCHES) break;
+            reply.append(' ').append(id);
+        }
+    }
+
+    String stats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("transfers across shards: committed=%d aborted=%d unfinished=%d",
+                committed.sum(), aborted.sum(), undelivered.size()));
+        for (Map.Entry<Long, HashRing> e : rings.entrySet()) {
+            sb.append(String.format("%nids from %d: %s", e.getKey(), String.join(" ", e.getValue().shards())));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        resolver.shutdownNow();
+        AccountIds.setListener(null);
+        for (ShardClient c : clients.values()) c.close();
+        log.close();
+    }
+}
+
+/* -----------------------------
+   HttpApi: embedded HTTP/JSON front-end
+   ----------------------------- */
+
+/*
+ * REST-style API on the JDK's built-in HTTP server. Parameters come from the query
+ * string or a form-encoded body; replies are JSON, amounts as decimal numbers (12.50).
+ *
+ *   GET  /accounts                                  all accounts (streamed)
+ *   GET  /accounts?owner=..   GET /accounts?ownerPrefix=..&limit=..   lookup by owner name
+ *   POST /accounts?type=savings&owner=..&deposit=..&rate=..
+ *   POST /accounts?type=checking&owner=..&deposit=..&free=..&fee=..
+ *   GET  /accounts/{id}
+ *   POST /accounts/{id}/deposit?amount=..           POST /accounts/{id}/withdraw?amount=..
+ *   GET  /accounts/{id}/transactions?from=..&to=..&type=..&cursor=..&limit=..
+ *   POST /transfers?from=..&to=..&amount=..
+ *   GET  /metrics                                   latency percentiles, error and account counts
+ *
+ * Errors are {"error": code, "message": ..} with the codes of CommandProcessor. Bodies
+ * are written through a small buffer straight into the response stream, so listing a
+ * million accounts never builds the whole document in memory.
+ */
+class HttpApi implements Closeable {
+    private static final int DEFAULT_PAGE = 100;
+    private static final int MAX_PAGE = 10_000;
+
+    private final Bank bank;
+    private final AdmissionController admission;
+    private final HttpServer server;
+    private final ExecutorService executor = LineServer.newConnectionExecutor();
+
+    HttpApi(Bank bank, int port, AdmissionController admission) throws IOException {
+        this.bank = bank;
+        this.admission = admission;
+        // replies are small and written in two parts (headers, body); without this Nagle's
+        // algorithm and delayed ACKs add ~40 ms to every keep-alive request
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 4096);
+        server.createContext("/accounts", this::accounts);
+        server.createContext("/transfers", this::transfers);
+        server.createContext("/metrics", this::metrics);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    int port() { return server.getAddress().getPort(); }
+
+    private void accounts(HttpExchange ex) throws IOException {
+        handle(ex, () -> {
+            String[] path = ex.getRequestURI().getPath().split("/"); // "", "accounts", id, action
+            String method = ex.getRequestMethod();
+            Map<String, String> params = params(ex);
+            if (path.length == 2) {
+                if ("GET".equals(method) && (params.containsKey("owner") || params.containsKey("ownerPrefix"))) {
+                    findAccounts(ex, params);
+                } else if ("GET".equals(method)) {
+                    listAccounts(ex);
+                } else if ("POST".equals(method)) {
+                    Account created = newAccount(params);
+                    Account acc = admission.call("create", () -> bank.openAccount(created));
+                    send(ex, 201, json -> writeAccount(json, acc));
+                } else {
+                    throw new MethodNotAllowed();
+                }
+                return;
+            }
+            long id = Long.parseLong(path[2]);
+            String action = path.length > 3 ? path[3] : "";
+            switch (action) {
+                case "":
+                    requireMethod(method, "GET");
+                    Account acc = bank.getAccount(id);
+                    if (acc == null) throw new AccountNotFoundException("Account not found: " + id);
+                    send(ex, 200, json -> writeAccount(json, acc));
+                    break;
+                case "deposit": {
+                    requireMethod(method, "POST");
+                    long amount = Money.parse(required(params, "amount"));
+                    // the balance is read inside the same admission: once the deposit is applied,
+                    // an overload reply would invite the client to repeat it
+                    long balance = admission.call("deposit", () -> {
+                        bank.deposit(id, amount);
+                        return bank.balance(id);
+                    });
+                    sendBalance(ex, id, balance);
+                    break;
+                }
+                case "withdraw": {
+                    requireMethod(method, "POST");
+                    long amount = Money.parse(required(params, "amount"));
+                    long balance = admission.call("withdraw", () -> {
+                        bank.withdraw(id, amount);
+                        return bank.balance(id);
+                    });
+                    sendBalance(ex, id, balance);
+                    break;
+                }
+                case "transactions":
+                    requireMethod(method, "GET");
+                    sendTransactions(ex, id, params);
+                    break;
+                default:
+                    throw new NotFound();
+            }
+        });
+    }
+
+    private void transfers(HttpExchange ex) throws IOException {
+        handle(ex, () -> {
+            requireMethod(ex.getRequestMethod(), "POST");
+            Map<String, String> params = params(ex);
+            long from = Long.parseLong(required(params, "from"));
+            long to = Long.parseLong(required(params, "to"));
+            long amount = Money.parse(required(params, "amount"));
+            admission.run("transfer", () -> bank.transfer(from, to, amount));
+            send(ex, 200, json -> json.beginObject().field("from", from).field("to", to)
+                    .money("amount", amount).endObject());
+        });
+    }
+
+    private void metrics(HttpExchange ex) throws IOException {
+        handle(ex, () -> {
+            requireMethod(ex.getRequestMethod(), "GET");
+            send(ex, 200, bank.metrics()::writeJson);
+        });
+    }
+
+    private Account newAccount(Map<String, String> params) {
+        String owner = required(params, "owner").trim();
+        if (owner.isEmpty()) throw new IllegalArgumentException("Owner name cannot be empty.");
+        long deposit = Money.parse(params.getOrDefault("deposit", "0"));
+        String type = required(params, "type");
+        if ("savings".equalsIgnoreCase(type)) {
+            return new SavingsAccount(owner, deposit, Double.parseDouble(required(params, "rate")));
+        }
+        if ("checking".equalsIgnoreCase(type)) {
+            return new CheckingAccount(owner, deposit, Integer.parseInt(required(params, "free")),
+                    Money.parse(required(params, "fee")));
+        }
+        throw new IllegalArgumentException("type must be savings or checking");
+    }
+
+    private void listAccounts(HttpExchange ex) throws IOException {
+        send(ex, 200, json -> {
+            json.beginObject().name("accounts").beginArray();
+            for (Account a : bank.getAccounts()) writeAccount(json, a);
+            json.endArray().endObject();
+        });
+    }
+
+    private void findAccounts(HttpExchange ex, Map<String, String> params) throws IOException {
+        List<Account> found = params.containsKey("owner")
+                ? bank.findByOwner(params.get("owner"))
+                : bank.findByOwnerPrefix(params.get("ownerPrefix"),
+                        Math.min(MAX_PAGE, Integer.parseInt(params.getOrDefault("limit", String.valueOf(DEFAULT_PAGE)))));
+        send(ex, 200, json -> {
+            json.beginObject().name("accounts").beginArray();
+            for (Account a : found) writeAccount(json, a);
+            json.endArray().endObject();
+        });
+    }
+
+    private void sendBalance(HttpExchange ex, long id, long balance) throws IOException {
+        send(ex, 200, json -> json.beginObject().field("id", id).money("balance", balance).endObject());
+    }
+
+    private void sendTransactions(HttpExchange ex, long id, Map<String, String> params) throws IOException {
+        Account acc = bank.getAccount(id);
+        if (acc == null) throw new AccountNotFoundException("Account not found: " + id);
+        LocalDateTime from = params.containsKey("from") ? LocalDateTime.parse(params.get("from")) : Transaction.toLocal(Long.MIN_VALUE);
+        LocalDateTime to = params.containsKey("to") ? LocalDateTime.parse(params.get("to")) : Transaction.toLocal(Long.MAX_VALUE);
+        long cursor = Long.parseLong(params.getOrDefault("cursor", "0"));
+        int limit = Math.min(MAX_PAGE, Integer.parseInt(params.getOrDefault("limit", String.valueOf(DEFAULT_PAGE))));
+        TransactionPage page = acc.findTransactions(from, to, params.get("type"), cursor, limit);
+        send(ex, 200, json -> {
+            json.beginObject().field("id", id).name("transactions").beginArray();
+            for (Transaction t : page.getItems()) {
+                json.beginObject()
+                        .field("time", StatementWriter.TIMESTAMP.format(t.getTimestamp()))
+                        .field("type", t.getType())
+                        .money("amount", t.getAmount())
+                        .field("note", t.getNote())
+                        .endObject();
+            }
+            json.endArray();
+            if (page.hasMore()) json.field("nextCursor", page.getNextCursor());
+            json.endObject();
+        });
+    }
+
+    private static void writeAccount(JsonWriter json, Account a) throws IOException {
+        json.beginObject()
+                .field("id", a.getId())
+                .field("type", a.getAccountType())
+                .field("owner", a.getOwnerName())
+                .money("balance", a.getBalance())
+                .endObject();
+    }
+
+    /* Plumbing */
+
+    private interface Body {
+        void write(JsonWriter json) throws IOException;
+    }
+
+    private interface Action {
+        void run() throws IOException;
+    }
+
+    private static final class NotFound extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class MethodNotAllowed extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    // maps failures to status codes the same way CommandProcessor maps them to error codes
+    private static void handle(HttpExchange ex, Action action) throws IOException {
+        try (HttpExchange e = ex) {
+            try {
+                action.run();
+            } catch (NotFound nf) {
+                sendError(e, 404, "NOT_FOUND", e.getRequestURI().getPath());
+            } catch (MethodNotAllowed mna) {
+                sendError(e, 405, "METHOD_NOT_ALLOWED", e.getRequestMethod());
+            } catch (AccountNotFoundException anf) {
+                sendError(e, 404, CommandProcessor.ERR_NO_ACCOUNT, anf.getMessage());
+            } catch (InsufficientFundsException ife) {
+                sendError(e, 409, CommandProcessor.ERR_INSUFFICIENT_FUNDS, ife.getMessage());
+            } catch (NumberFormatException | DateTimeParseException bad) {
+                sendError(e, 400, CommandProcessor.ERR_SYNTAX, bad.getMessage());
+            } catch (IllegalArgumentException iae) {
+                sendError(e, 422, CommandProcessor.ERR_REJECTED, iae.getMessage());
+            } catch (OverloadedException oe) {
+                e.getResponseHeaders().set("Retry-After", "1");
+                sendError(e, 503, CommandProcessor.ERR_OVERLOADED, oe.getMessage());
+            } catch (UnsupportedOperationException uoe) {
+                sendError(e, 501, CommandProcessor.ERR_UNSUPPORTED, uoe.getMessage());
+            } catch (RuntimeException re) {
+                sendError(e, 500, CommandProcessor.ERR_INTERNAL, String.valueOf(re));
+            }
+        }
+    }
+
+    private static void sendError(HttpExchange ex, int status, String code, String message) throws IOException {
+        send(ex, status, json -> json.beginObject().field("error", code).field("message", String.valueOf(message)).endObject());
+    }
+
+    // small bodies go out with a Content-Length, large ones chunked as they are written
+    private static void send(HttpExchange ex, int status, Body body) throws IOException {
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        JsonWriter json = new JsonWriter(length -> {
+            ex.sendResponseHeaders(status, length);
+            return ex.getResponseBody();
+        });
+        body.write(json);
+        json.finish();
+    }
+
+    private static void requireMethod(String method, String expected) {
+        if (!expected.equals(method)) throw new MethodNotAllowed();
+    }
+
+    private static String required(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null) throw new NumberFormatException("Missing parameter: " + name);
+        return value;
+    }
+
+    // query string plus a form-encoded body, if any
+    private static Map<String, String> params(HttpExchange ex) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        parseForm(ex.getRequestURI().getRawQuery(), params);
+        byte[] body = ex.getRequestBody().readAllBytes();
+        if (body.length > 0) parseForm(new String(body, StandardCharsets.UTF_8), params);
+        return params;
+    }
+
+    private static void parseForm(String form, Map<String, String> into) {
+        if (form == null || form.isEmpty()) return;
+        for (String pair : form.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            into.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdown();
+    }
+}
+
+/*
+ * Minimal streaming JSON writer: values are appended to one StringBuilder that is
+ * encoded to the output every 8 KB. Commas are inserted automatically. The output is
+ * opened lazily: a document that fits in the buffer is opened with its exact length,
+ * a larger one with length 0 (for HTTP, chunked).
+ */
+class JsonWriter {
+    private static final int FLUSH_AT = 8 * 1024;
+
+    interface Output {
+        OutputStream open(long length) throws IOException;
+    }
+
+    private final Output output;
+    private final StringBuilder buf = new StringBuilder(FLUSH_AT + 512);
+    private OutputStream out;
+    private boolean needComma;
+
+    JsonWriter(Output output) {
+        this.output = output;
+    }
+
+    JsonWriter beginObject() { return open('{'); }
+    JsonWriter endObject() throws IOException { return close('}'); }
+    JsonWriter beginArray() { return open('['); }
+    JsonWriter endArray() throws IOException { return close(']'); }
+
+    JsonWriter name(String name) {
+        comma();
+        string(name);
+        buf.append(':');
+        needComma = false;
+        return this;
+    }
+
+    JsonWriter field(String name, String value) {
+        name(name);
+        string(value);
+        needComma = true;
+        return this;
+    }
+
+    JsonWriter field(String name, long value) {
+        name(name);
+        buf.append(value);
+        needComma = true;
+        return this;
+    }
+
+    JsonWriter money(String name, long cents) {
+        name(name);
+        Money.appendTo(buf, cents);
+        needComma = true;
+        return this;
+    }
+
+    // writes what is left and flushes; the document is complete
+    void finish() throws IOException {
+        byte[] bytes = buf.toString().getBytes(StandardCharsets.UTF_8);
+        buf.setLength(0);
+        if (out == null) out = output.open(bytes.length);
+        out.write(bytes);
+        out.flush();
+    }
+
+    private JsonWriter open(char c) {
+        comma();
+        buf.append(c);
+        needComma = false;
+        return this;
+    }
+
+    private JsonWriter close(char c) throws IOException {
+        buf.append(c);
+        needComma = true;
+        if (buf.length() >= FLUSH_AT) {
+            if (out == null) out = output.open(0);
+            out.write(buf.toString().getBytes(StandardCharsets.UTF_8));
+            buf.setLength(0);
+        }
+        return this;
+    }
+
+    private void comma() {
+        if (needComma) buf.append(',');
+    }
+
+    private void string(String s) {
+        buf.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': buf.append("\\\""); break;
+                case '\\': buf.append("\\\\"); break;
+                case '\n': buf.append("\\n"); break;
+                case '\r': buf.append("\\r"); break;
+                case '\t': buf.append("\\t"); break;
+                default:
+                    if (c < 0x20) buf.append(String.format("\\u%04x", (int) c));
+                    else buf.append(c);
+            }
+        }
+        buf.append('"');
+    }
+}
+
+/* -----------------------------
+   AdmissionController: bounded concurrency in front of the ledger
+   ----------------------------- */
+
+/*
+ * Front-ends pass every ledger operation through here. At most maxConcurrent
+ * operations run at once. Further ones wait in a bounded FIFO queue for at most
+ * maxWait, or are turned away at once under the REJECT policy. Anything beyond that
+ * fails fast with OverloadedException instead of piling up, so an admitted operation
+ * never waits longer than maxWait before it starts, whatever the offered load.
+ *
+ * The permit covers the in-memory work only. The wait for the journal fsync comes
+ * after it is released (but before the caller replies), so group commit still sees
+ * every waiting operation and a slow disk does not shrink the concurrency limit.
+ *
+ * Configured from the command line:
+ *   --max-concurrent n   (default 64)     --max-queue n        (default 1024)
+ *   --queue-timeout-ms n (default 100)    --overload queue|reject (default queue)
+ */
+class AdmissionController {
+    enum Policy { QUEUE, REJECT }
+
+    private final Bank bank;
+    private final Semaphore permits;
+    private final int maxConcurrent;
+    private final int maxQueue;
+    private final long maxWaitNanos;
+    private final Policy policy;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Map<String, OpStats> stats = new ConcurrentHashMap<>();
+
+    AdmissionController(Bank bank, int maxConcurrent, int maxQueue, long maxWaitMillis, Policy policy) {
+        if (maxConcurrent <= 0 || maxQueue < 0 || maxWaitMillis < 0) {
+            throw new IllegalArgumentException("Invalid admission limits.");
+        }
+        this.bank = bank;
+        this.permits = new Semaphore(maxConcurrent, true);
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueue = maxQueue;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.policy = policy;
+    }
+
+    // no limits, only statistics
+    static AdmissionController unlimited(Bank bank) {
+        return new AdmissionController(bank, Integer.MAX_VALUE, 0, 0, Policy.REJECT);
+    }
+
+    static AdmissionController fromArgs(Bank bank, String[] args) {
+        String concurrent = BankApp.optionValue(args, "--max-concurrent");
+        String queue = BankApp.optionValue(args, "--max-queue");
+        String timeout = BankApp.optionValue(args, "--queue-timeout-ms");
+        String overload = BankApp.optionValue(args, "--overload");
+        return new AdmissionController(bank,
+                concurrent == null ? 64 : Integer.parseInt(concurrent),
+                queue == null ? 1024 : Integer.parseInt(queue),
+                timeout == null ? 100 : Long.parseLong(timeout),
+                overload == null ? Policy.QUEUE : Policy.valueOf(overload.toUpperCase(Locale.ROOT)));
+    }
+
+    <T> T call(String op, Supplier<T> work) {
+        T result;
+        acquire(op);
+        bank.beginDeferredSync();
+        try {
+            result = work.get();
+        } finally {
+            bank.endDeferredSync();
+            permits.release();
+        }
+        bank.syncJournal();
+        return result;
+    }
+
+    void run(String op, Runnable work) {
+        call(op, () -> {
+            work.run();
+            return null;
+        });
+    }
+
+    private void acquire(String op) {
+        OpStats s = stats.computeIfAbsent(op, k -> new OpStats());
+        try {
+            // the timed form respects the queue order even with a zero timeout
+            if (permits.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                s.admitted(0);
+                return;
+            }
+            if (policy == Policy.REJECT || queued.incrementAndGet() > maxQueue) {
+                if (policy == Policy.QUEUE) queued.decrementAndGet();
+                s.rejected.increment();
+                throw new OverloadedException("Server busy, try again later.");
+            }
+            long start = System.nanoTime();
+            boolean admitted;
+            try {
+                admitted = permits.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS);
+            } finally {
+                queued.decrementAndGet();
+            }
+            long waited = System.nanoTime() - start;
+            if (!admitted) {
+                s.timedOut.increment();
+                throw new OverloadedException("Server busy, timed out after " + waited / 1_000_000 + " ms in queue.");
+            }
+            s.admitted(waited);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new OverloadedException("Interrupted while queued.");
+        }
+    }
+
+    int queued() { return queued.get(); }
+
+    // one line per operation: admitted, rejected, timed out, mean and max queue time
+    String stats() {
+        StringBuilder sb = new StringBuilder();
+        if (maxConcurrent == Integer.MAX_VALUE) {
+            sb.append("admission: unlimited");
+        } else {
+            sb.append(String.format("admission: max-concurrent=%d max-queue=%d timeout=%dms policy=%s queued=%d",
+                    maxConcurrent, maxQueue, maxWaitNanos / 1_000_000, policy, queued.get()));
+        }
+        for (Map.Entry<String, OpStats> e : new TreeMap<>(stats).entrySet()) {
+            sb.append('\n').append(e.getKey()).append(' ').append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    private static final class OpStats {
+        final LongAdder admitted = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder timedOut = new LongAdder();
+        final LongAdder queueNanos = new LongAdder();
+        final LongAccumulator maxQueueNanos = new LongAccumulator(Math::max, 0);
+
+        void admitted(long waitedNanos) {
+            admitted.increment();
+            if (waitedNanos > 0) {
+                queueNanos.add(waitedNanos);
+                maxQueueNanos.accumulate(waitedNanos);
+            }
+        }
+
+        @Override
+        public String toString() {
+            long n = admitted.sum();
+            return String.format("admitted=%d rejected=%d timedOut=%d queueAvg=%dus queueMax=%dus",
+                    n, rejected.sum(), timedOut.sum(), n == 0 ? 0 : queueNanos.sum() / n / 1000,
+                    maxQueueNanos.get() / 1000);
+        }
+    }
+}
+
+/*
+ * Thrown instead of accepting work the bank cannot start soon enough. Under overload
+ * it is thrown far more often than real work is done, so it skips the stack trace.
+ */
+class OverloadedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    OverloadedException(String message) { super(message, null, false, false); }
+}
+
+/* -----------------------------
+   BankMetrics: latency histograms and counters
+   ----------------------------- */
+
+/*
+ * Log-linear latency histogram. Every power-of-two range of nanoseconds is split into
+ * 16 buckets, so a reported percentile is at most 1/16 (6.25%) above the true value,
+ * from 1 ns up to centuries, in under a thousand counters. Recording is a couple of shifts and one
+ * atomic increment. Counters are striped by thread so concurrent recorders rarely
+ * share a cache line; reads add the stripes up and are approximate while recording
+ * continues, which is fine for monitoring.
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+    private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) * 2;
+
+    // per stripe: BUCKETS counters, then the maximum
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+    LatencyHistogram() {
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new AtomicLongArray(BUCKETS + 1);
+    }
+
+    void record(long nanos) {
+        AtomicLongArray s = stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+        s.getAndIncrement(bucket(nanos));
+        long max;
+        while (nanos > (max = s.get(BUCKETS)) && !s.compareAndSet(BUCKETS, max, nanos)) {
+            // another thread raised the maximum; retry against the new value
         }
-        System.out.println("Monthly update applied to all accounts (interest/fee resets).");
     }
 
-    private Account askForAccount(String prompt) {
-        System.out.print(prompt);
-        String s = scanner.nextLine().trim();
-        long id;
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) return (int) Math.max(0, nanos);
+        int exp = 63 - Long.numberOfLeadingZeros(nanos);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + (int) ((nanos >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    // largest value that falls into the bucket
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exp - SUB_BITS);
+        return lower + (1L << (exp - SUB_BITS)) - 1;
+    }
+
+    Counts snapshot() {
+        long[] counts = new long[BUCKETS];
+        long max = 0;
+        for (AtomicLongArray s : stripes) {
+            for (int b = 0; b < BUCKETS; b++) counts[b] += s.get(b);
+            max = Math.max(max, s.get(BUCKETS));
+        }
+        return new Counts(counts, max);
+    }
+
+    static final class Counts {
+        private final long[] counts;
+        private final long count;
+        private final long max;
+
+        Counts(long[] counts, long max) {
+            long n = 0;
+            for (long c : counts) n += c;
+            this.counts = counts;
+            this.count = n;
+            this.max = max;
+        }
+
+        long count() { return count; }
+        long max() { return max; }
+
+        // value below which the given fraction (0.99 = p99) of recordings fall
+        long percentile(double fraction) {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int b = 0; b < counts.length; b++) {
+                seen += counts[b];
+                if (seen >= rank) return Math.min(upperBound(b), max);
+            }
+            return max;
+        }
+    }
+}
+
+/*
+ * What the bank measures about itself: a latency histogram per operation, error
+ * counts by message, and account counts by type. Messages have their numbers replaced
+ * by '#' so that "Account not found: 1001" and "...: 1002" are counted together.
+ */
+class BankMetrics {
+    static final int OPEN_ACCOUNT = 0;
+    static final int DEPOSIT = 1;
+    static final int WITHDRAW = 2;
+    static final int TRANSFER = 3;
+    static final int MONTHLY_UPDATE = 4;
+    private static final String[] OP_NAMES = { "openAccount", "deposit", "withdraw", "transfer", "monthlyUpdate" };
+    private static final int MAX_ERROR_KINDS = 256;
+
+    private final LatencyHistogram[] latency = new LatencyHistogram[OP_NAMES.length];
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> accountTypes = new ConcurrentHashMap<>();
+    private final long startedNanos = System.nanoTime();
+    private long lastReportNanos = startedNanos;    // guarded by this
+    private long[] lastReportCounts = new long[OP_NAMES.length];
+
+    BankMetrics() {
+        for (int i = 0; i < latency.length; i++) latency[i] = new LatencyHistogram();
+    }
+
+    void record(int op, long startedNanos) {
+        latency[op].record(System.nanoTime() - startedNanos);
+    }
+
+    void failed(int op, RuntimeException e) {
+        String key = OP_NAMES[op] + ": " + normalize(e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+        LongAdder counter = errors.get(key);
+        if (counter == null) {
+            if (errors.size() >= MAX_ERROR_KINDS) key = OP_NAMES[op] + ": (other)";
+            counter = errors.computeIfAbsent(key, k -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    void accountAdded(Account acc) {
+        accountTypes.computeIfAbsent(acc.getAccountType(), k -> new LongAdder()).increment();
+    }
+
+    private static String normalize(String message) {
+        StringBuilder sb = new StringBuilder(message.length());
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (sb.length() == 0 || sb.charAt(sb.length() - 1) != '#') sb.append('#');
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /* Reports: the same numbers as a text table (console, line protocol) or as JSON (HTTP) */
+
+    // rates are per second since the previous report (or since start)
+    synchronized String report() {
+        long now = System.nanoTime();
+        double interval = Math.max(1e-9, (now - lastReportNanos) / 1e9);
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("uptime %.1f s, rates over the last %.1f s; latencies in microseconds%n",
+                (now - startedNanos) / 1e9, interval));
+        sb.append(String.format("%-14s %10s %10s %9s %9s %9s %9s%n", "operation", "count", "ops/s", "p50", "p99", "p999", "max"));
+        for (int op = 0; op < latency.length; op++) {
+            LatencyHistogram.Counts s = latency[op].snapshot();
+            sb.append(String.format("%-14s %10d %10.0f %9.1f %9.1f %9.1f %9.1f%n", OP_NAMES[op], s.count(),
+                    (s.count() - lastReportCounts[op]) / interval, s.percentile(0.5) / 1e3,
+                    s.percentile(0.99) / 1e3, s.percentile(0.999) / 1e3, s.max() / 1e3));
+            lastReportCounts[op] = s.count();
+        }
+        lastReportNanos = now;
+        sb.append("errors:");
+        if (errors.isEmpty()) sb.append(" none");
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(errors).entrySet()) {
+            sb.append(String.format("%n  %-60s %d", e.getKey(), e.getValue().sum()));
+        }
+        sb.append(String.format("%naccounts:"));
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(accountTypes).entrySet()) {
+            sb.append(' ').append(e.getKey()).append('=').append(e.getValue().sum());
+        }
+        return sb.toString();
+    }
+
+    // cumulative numbers only, so that scrapers can compute their own rates
+    void writeJson(JsonWriter json) throws IOException {
+        json.beginObject().field("uptimeNanos", System.nanoTime() - startedNanos);
+        json.name("operations").beginObject();
+        for (int op = 0; op < latency.length; op++) {
+            LatencyHistogram.Counts s = latency[op].snapshot();
+            json.name(OP_NAMES[op]).beginObject()
+                    .field("count", s.count())
+                    .field("p50Nanos", s.percentile(0.5))
+                    .field("p99Nanos", s.percentile(0.99))
+                    .field("p999Nanos", s.percentile(0.999))
+                    .field("maxNanos", s.max())
+                    .endObject();
+        }
+        json.endObject().name("errors").beginObject();
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(errors).entrySet()) json.field(e.getKey(), e.getValue().sum());
+        json.endObject().name("accounts").beginObject();
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(accountTypes).entrySet()) json.field(e.getKey(), e.getValue().sum());
+        json.endObject().endObject();
+    }
+}
+
+/* -----------------------------
+   StatementWriter: streaming account statements
+   ----------------------------- */
+
+/*
+ * Renders an account's history straight from its TransactionLog columns into a byte
+ * channel (stdout, a file, a socket). Lines are built in one reused StringBuilder and
+ * encoded into one 64 KB buffer that is written out whenever it fills, so memory stays
+ * flat however long the history is. Timestamps use one shared formatter and are cached
+ * per second; amounts are rendered by Money.appendTo instead of String.format.
+ */
+class StatementWriter {
+    static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String PADDING = "                ";
+
+    private final WritableByteChannel out;
+    private final ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final StringBuilder line = new StringBuilder(128);
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedTimestamp;
+
+    StatementWriter(WritableByteChannel out) {
+        this.out = out;
+    }
+
+    // writes the header, every entry and the balance; returns the number of entries
+    int write(Account acc) throws IOException {
+        TransactionLog history;
+        long balance;
+        synchronized (acc) {
+            history = acc.history();
+            balance = acc.balance;
+        }
+        line.setLength(0);
+        line.append("Transactions for account ").append(acc.getId()).append(":\n");
+        emit();
+        for (int i = 0; i < history.size(); i++) {
+            line.setLength(0);
+            appendLine(line, timestamp(history.timeAt(i)), Transaction.typeName(history.typeAt(i)),
+                    history.amountAt(i), history.noteAt(i));
+            line.append('\n');
+            emit();
+        }
+        line.setLength(0);
+        line.append("Current balance: ");
+        Money.appendTo(line, balance);
+        line.append('\n');
+        emit();
+        flush();
+        return history.size();
+    }
+
+    // "2024-01-31 09:15:00 | DEPOSIT      |    50.00 | note", same layout as Transaction.toString
+    static void appendLine(StringBuilder sb, String timestamp, String type, long amount, String note) {
+        sb.append(timestamp).append(" | ").append(type);
+        pad(sb, 12 - type.length());
+        sb.append(" | ");
+        int start = sb.length();
+        Money.appendTo(sb, amount);
+        sb.insert(start, PADDING, 0, Math.max(0, 8 - (sb.length() - start)));
+        sb.append(" | ").append(note);
+    }
+
+    private static void pad(StringBuilder sb, int n) {
+        if (n > 0) sb.append(PADDING, 0, n);
+    }
+
+    private String timestamp(long epochNanos) {
+        long second = Math.floorDiv(epochNanos, 1_000_000_000L);
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedTimestamp = TIMESTAMP.format(Transaction.toLocal(epochNanos));
+        }
+        return cachedTimestamp;
+    }
+
+    private void emit() throws IOException {
+        CharBuffer chars = CharBuffer.wrap(line);
+        while (true) {
+            CoderResult result = encoder.encode(chars, buf, false);
+            if (result.isOverflow()) {
+                drain();
+            } else if (result.isUnderflow()) {
+                return;
+            } else {
+                result.throwException();
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) out.write(buf);
+        buf.clear();
+    }
+
+    void flush() throws IOException {
+        drain();
+    }
+}
+
+/* -----------------------------
+   Journal: write-ahead log with group commit
+   ----------------------------- */
+
+/*
+ * Append-only journal of account changes. Every record carries the account's balance
+ * (and subclass counters) after the change, so replay just restores state and never
+ * re-runs business rules.
+ *
+ * File layout: a sequence of frames [int payloadLength][int crc32c][records...]. A
+ * frame is the unit of atomicity: a transfer or a withdrawal with a fee is one frame.
+ * Replay stops at the first short or corrupt frame, which is what a crash mid-write
+ * leaves behind.
+ *
+ * Writers append frames to an in-memory buffer under the journal lock, which is cheap.
+ * A single flusher thread swaps that buffer out, writes it and calls force(), then
+ * wakes everyone whose frames were in the batch. While one fsync is running the next
+ * batch fills up, so many operations share one fsync.
+ */
+class Journal implements Closeable {
+    static final byte REC_CREATE = 1;
+    static final byte REC_POST = 2;
+    static final byte REC_STATE = 3;
+    static final byte REC_PERIOD = 4;
+    static final byte REC_ID_BLOCK = 5;
+    static final byte REC_TRANSFER = 6;
+
+    static final byte TX_PREPARED = 1;
+    static final byte TX_COMMITTED = 2;
+    static final byte TX_ABORTED = 3;
+
+    static final byte TYPE_SAVINGS = 1;
+    static final byte TYPE_CHECKING = 2;
+
+    private static final int FRAME_HEADER = 8;
+
+    private final FileChannel channel;
+    private final Thread flusher;
+    private final ThreadLocal<Staging> staging = ThreadLocal.withInitial(Staging::new);
+
+    // guarded by this
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+    private ByteBuffer writing = ByteBuffer.allocate(1 << 16);
+    private long appended; // file offset after the last appended frame
+    private long durable;  // file offset up to which data has been forced to disk
+    private long forces;
+    private long frames;
+    private IOException failure;
+    private boolean closed;
+
+    // records of the current thread's operation, waiting for the outermost end()
+    private static final class Staging {
+        ByteBuffer buf = ByteBuffer.allocate(512);
+        int depth;
+    }
+
+    Journal(FileChannel channel, long end) throws IOException {
+        this.channel = channel;
+        channel.position(end);
+        this.appended = end;
+        this.durable = end;
+        this.flusher = new Thread(this::flushLoop, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /* Grouping: nested begin/end pairs collapse into a single frame */
+
+    void begin() {
+        staging.get().depth++;
+    }
+
+    void end() {
+        Staging s = staging.get();
+        if (--s.depth == 0) appendFrame(s.buf);
+    }
+
+    /* Records; callers hold the lock of the account being logged */
+
+    void logCreate(Account acc) {
+        byte[] owner = acc.getOwnerName().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = reserve(1 + 8 + 1 + 4 + owner.length + 4 + 8 + 8);
+        b.put(REC_CREATE).putLong(acc.getId()).put(typeCode(acc));
+        putBytes(b, owner);
+        b.putInt(freeWithdrawals(acc)).putLong(typeParam(acc)).putLong(acc.auxState());
+        recordDone();
+    }
+
+    void logPost(Account acc, long at, byte type, long amount, String note) {
+        byte[] noteBytes = note.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = reserve(1 + 8 + 8 + 1 + 8 + 4 + noteBytes.length + 8 + 8 + 8);
+        b.put(REC_POST).putLong(acc.getId());
+        b.putLong(at).put(type).putLong(amount);
+        putBytes(b, noteBytes);
+        b.putLong(acc.balance).putLong(acc.auxState()).putLong(acc.getVersion());
+        recordDone();
+    }
+
+    void logState(Account acc) {
+        reserve(1 + 8 + 8 + 8 + 8).put(REC_STATE).putLong(acc.getId())
+                .putLong(acc.balance).putLong(acc.auxState()).putLong(acc.getVersion());
+        recordDone();
+    }
+
+    void logPeriod(int period, long at) {
+        reserve(1 + 8 + 8).put(REC_PERIOD).putLong(period).putLong(at);
+        recordDone();
+    }
+
+    // a cross-shard transfer was prepared or resolved here; the caller holds the account's
+    // lock, if the transfer got as far as touching one
+    void logTransfer(byte state, PreparedTransfer p) {
+        reserve(1 + 8 + 1 + 1 + 8 + 8 + 8).put(REC_TRANSFER).putLong(p.tx).put(state).put((byte) (p.debit ? 1 : 0))
+                .putLong(p.account).putLong(p.counterparty).putLong(p.amount);
+        recordDone();
+    }
+
+    // an id block was reserved: ids below highWater must not be handed out again
+    void logIdBlock(long highWater) {
+        reserve(1 + 8).put(REC_ID_BLOCK).putLong(highWater);
+        recordDone();
+    }
+
+    // staging buffer of this thread with room for n more bytes
+    private ByteBuffer reserve(int n) {
+        Staging s = staging.get();
+        if (s.buf.remaining() < n) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(s.buf.capacity() * 2, s.buf.position() + n));
+            s.buf.flip();
+            bigger.put(s.buf);
+            s.buf = bigger;
+        }
+        return s.buf;
+    }
+
+    // a record written outside begin/end is a frame on its own
+    private void recordDone() {
+        Staging s = staging.get();
+        if (s.depth == 0) appendFrame(s.buf);
+    }
+
+    private void appendFrame(ByteBuffer records) {
+        if (records.position() == 0) return;
+        records.flip();
+        CRC32C crc = new CRC32C();
+        crc.update(records.duplicate());
+        int length = records.remaining();
+        synchronized (this) {
+            if (closed) throw new IllegalStateException("Journal is closed.");
+            if (pending.remaining() < FRAME_HEADER + length) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + FRAME_HEADER + length));
+                pending.flip();
+                bigger.put(pending);
+                pending = bigger;
+            }
+            pending.putInt(length).putInt((int) crc.getValue()).put(records);
+            appended += FRAME_HEADER + length;
+            frames++;
+            notifyAll();
+        }
+        records.clear();
+    }
+
+    /* Group commit */
+
+    // blocks until everything appended so far (by any thread) is on disk
+    synchronized void sync() {
+        long target = appended;
+        boolean interrupted = false;
+        while (durable < target) {
+            if (failure != null) throw new UncheckedIOException("Journal write failed", failure);
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private void flushLoop() {
+        while (true) {
+            ByteBuffer batch;
+            long target;
+            synchronized (this) {
+                while (pending.position() == 0 && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+                if (pending.position() == 0) return; // closed and drained
+                batch = pending;
+                pending = writing;
+                writing = batch;
+                target = appended;
+            }
+            try {
+                batch.flip();
+                while (batch.hasRemaining()) channel.write(batch);
+                channel.force(false);
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            } finally {
+                batch.clear();
+            }
+            synchronized (this) {
+                durable = target;
+                forces++;
+                notifyAll();
+            }
+        }
+    }
+
+    // offset of the next frame; everything before it is already applied to the accounts
+    synchronized long position() {
+        return appended;
+    }
+
+    synchronized String stats() {
+        return String.format("frames=%d fsyncs=%d bytes=%d", frames, forces, durable);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
         try {
-            id = Long.parseLong(s);
-        } catch (NumberFormatException nfe) {
-            System.out.println("Invalid id.");
-            return null;
+            flusher.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
         }
-        Account acc = accounts.get(id);
-        if (acc == null) System.out.println("Account not found.");
+        channel.close();
+        if (failure != null) throw failure;
+    }
+
+    /* Replay */
+
+    // applies every complete frame from 'start' on and returns the offset just past the last one
+    static long replay(FileChannel channel, Bank bank, long start) throws IOException {
+        long size = channel.size();
+        if (start > size) throw new IOException("Journal is shorter than the snapshot expects (" + size + " < " + start + ")");
+        long pos = start;
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+        while (pos + FRAME_HEADER <= size) {
+            header.clear();
+            readFully(channel, header, pos);
+            header.flip();
+            int length = header.getInt();
+            int expectedCrc = header.getInt();
+            if (length <= 0 || pos + FRAME_HEADER + length > size) break;
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(channel, payload, pos + FRAME_HEADER);
+            payload.flip();
+            CRC32C crc = new CRC32C();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != expectedCrc) break;
+            while (payload.hasRemaining()) applyRecord(payload, bank);
+            pos += FRAME_HEADER + length;
+        }
+        return pos;
+    }
+
+    private static void applyRecord(ByteBuffer b, Bank bank) {
+        byte kind = b.get();
+        long id = b.getLong();
+        switch (kind) {
+            case REC_CREATE: {
+                byte type = b.get();
+                String owner = getString(b);
+                int free = b.getInt();
+                long param = b.getLong();
+                long aux = b.getLong();
+                if (bank.getAccount(id) == null) { // may already come from the snapshot
+                    Account acc = newAccount(type, id, owner, free, param);
+                    acc.restoreAuxState(aux);
+                    bank.restoreAccount(acc);
+                }
+                break;
+            }
+            case REC_POST: {
+                long at = b.getLong();
+                byte type = b.get();
+                long amount = b.getLong();
+                String note = getString(b);
+                long balanceAfter = b.getLong();
+                long aux = b.getLong();
+                long version = b.getLong();
+                replayTarget(bank, id).replayPost(at, type, amount, note, balanceAfter, aux, version);
+                break;
+            }
+            case REC_STATE: {
+                long balance = b.getLong();
+                long aux = b.getLong();
+                long version = b.getLong();
+                replayTarget(bank, id).replayState(balance, aux, version);
+                break;
+            }
+            case REC_PERIOD:
+                bank.calendar().restore((int) id, b.getLong());
+                break;
+            case REC_ID_BLOCK:
+                AccountIds.reserveBelow(id);
+                break;
+            case REC_TRANSFER: {
+                byte state = b.get();
+                boolean debit = b.get() != 0;
+                bank.restoreTransfer(state, new PreparedTransfer(id, debit, b.getLong(), b.getLong(), b.getLong()));
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unknown journal record type " + kind);
+        }
+    }
+
+    // rebuilds an account from its type code and parameters (shared with Snapshot)
+    static Account newAccount(byte type, long id, String owner, int freeWithdrawals, long param) {
+        return type == TYPE_SAVINGS
+                ? new SavingsAccount(id, owner, param)
+                : new CheckingAccount(id, owner, freeWithdrawals, param);
+    }
+
+    static byte typeCode(Account acc) {
+        return acc instanceof SavingsAccount ? TYPE_SAVINGS : TYPE_CHECKING;
+    }
+
+    // interest rate (ppm) for savings, withdrawal fee (cents) for checking
+    static long typeParam(Account acc) {
+        return acc instanceof SavingsAccount
+                ? ((SavingsAccount) acc).getAnnualRatePpm()
+                : ((CheckingAccount) acc).getWithdrawalFee();
+    }
+
+    static int freeWithdrawals(Account acc) {
+        return acc instanceof CheckingAccount ? ((CheckingAccount) acc).getFreeWithdrawalsPerMonth() : 0;
+    }
+
+    private static Account replayTarget(Bank bank, long id) {
+        Account acc = bank.getAccount(id);
+        if (acc == null) throw new IllegalStateException("Journal refers to unknown account " + id);
         return acc;
     }
 
-    private double parseDoubleInput(String s) {
-        try {
-            return Double.parseDouble(s.trim());
-        } catch (Exception e) {
-            return 0.0;
+    static void putBytes(ByteBuffer b, byte[] bytes) {
+        b.putInt(bytes.length).put(bytes);
+    }
+
+    static String getString(ByteBuffer b) {
+        byte[] bytes = new byte[b.getInt()];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position + dst.position());
+            if (n < 0) throw new IOException("Unexpected end of journal");
         }
     }
+}
 
-    private int parseIntInput(String s) {
-        try {
-            return Integer.parseInt(s.trim());
-        } catch (Exception e) {
-            return 0;
+/* -----------------------------
+   Snapshot: compact binary image of all accounts
+   ----------------------------- */
+
+/*
+ * A snapshot is taken while the bank keeps running. It remembers the journal offset at
+ * which it started, then copies one account at a time under that account's lock.
+ * Every frame before the offset is therefore already in the copied state; frames after
+ * it may or may not be, and the account version numbers let replay skip the ones that
+ * are. Startup loads the snapshot and replays only the journal tail.
+ *
+ * Layout: header [magic][journal offset][account id high-water mark][period count][period starts...],
+ * then per account
+ * [id][type][owner][free withdrawals][rate or fee][balance][aux][version][tx count], then per
+ * transaction [epoch nanos][type code][amount in cents][note], closed by an id of -1, then
+ * [count] cross-shard transfers prepared but not resolved, each
+ * [tx][debit][account][counterparty][amount], then the recently resolved ones as
+ * [highest forgotten tx][count] and per transfer [tx][committed].
+ */
+class Snapshot {
+    private static final long MAGIC = 0x42414E4B534E4150L; // "BANKSNAP"
+    private static final long END_MARKER = -1;
+
+    // writes to a temp file, forces it and then atomically replaces the previous snapshot
+    static String write(Bank bank, Journal journal, Path file) throws IOException {
+        long started = System.nanoTime();
+        long journalOffset = journal.position();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        int count;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeLong(MAGIC);
+            out.writeLong(journalOffset);
+            out.writeLong(AccountIds.highWaterMark());
+            BillingCalendar calendar = bank.calendar();
+            int periods = calendar.current();
+            out.writeInt(periods);
+            for (int p = 1; p <= periods; p++) out.writeLong(calendar.startOf(p));
+            count = bank.writeAccounts(out);
+            out.writeLong(END_MARKER);
+            List<PreparedTransfer> open = new ArrayList<>(bank.preparedTransfers());
+            out.writeInt(open.size());
+            for (PreparedTransfer p : open) {
+                out.writeLong(p.tx);
+                out.writeBoolean(p.debit);
+                out.writeLong(p.account);
+                out.writeLong(p.counterparty);
+                out.writeLong(p.amount);
+            }
+            bank.writeResolvedTransfers(out);
+            out.flush();
+            channel.force(true);
+        }
+        // the snapshot may contain changes past journalOffset; make sure those are durable first
+        journal.sync();
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return String.format("Snapshot of %d accounts written to %s in %d ms (journal offset %d).",
+                count, file, (System.nanoTime() - started) / 1_000_000, journalOffset);
+    }
+
+    // loads every account into the bank and returns the journal offset to replay from
+    static long load(Path file, Bank bank) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedInput in = new MappedInput(channel);
+            if (in.getLong() != MAGIC) throw new IOException("Not a bank snapshot: " + file);
+            long journalOffset = in.getLong();
+            AccountIds.reserveBelow(in.getLong());
+            int periods = in.getInt();
+            for (int p = 1; p <= periods; p++) bank.calendar().restore(p, in.getLong());
+            while (true) {
+                long id = in.getLong();
+                if (id == END_MARKER) break;
+                bank.restoreAccount(readAccount(in, id));
+            }
+            int open = in.hasRemaining() ? in.getInt() : 0; // older snapshots end here
+            for (int i = 0; i < open; i++) {
+                long tx = in.getLong();
+                boolean debit = in.get() != 0;
+                bank.restoreTransfer(Journal.TX_PREPARED, new PreparedTransfer(tx, debit, in.getLong(), in.getLong(), in.getLong()));
+            }
+            if (in.hasRemaining()) {
+                bank.forgetTransfersThrough(in.getLong());
+                int resolved = in.getInt();
+                for (int i = 0; i < resolved; i++) {
+                    long tx = in.getLong();
+                    byte state = in.get() != 0 ? Journal.TX_COMMITTED : Journal.TX_ABORTED;
+                    bank.restoreTransfer(state, new PreparedTransfer(tx, false, 0, 0, 0));
+                }
+            }
+            return journalOffset;
+        }
+    }
+
+    /* Account records, also used by TieredAccountStore to page accounts out */
+
+    // copies the account under its lock, then writes it without holding the lock;
+    // returns the version written
+    static long writeAccount(DataOutputStream out, Account a) throws IOException {
+        long balance;
+        long aux;
+        long version;
+        TransactionLog history;
+        synchronized (a) {
+            balance = a.balance;
+            aux = a.auxState();
+            version = a.getVersion();
+            history = a.historySnapshot();
+        }
+        out.writeLong(a.getId());
+        out.writeByte(Journal.typeCode(a));
+        writeString(out, a.getOwnerName());
+        out.writeInt(Journal.freeWithdrawals(a));
+        out.writeLong(Journal.typeParam(a));
+        out.writeLong(balance);
+        out.writeLong(aux);
+        out.writeLong(version);
+        out.writeInt(history.size());
+        for (int i = 0; i < history.size(); i++) {
+            out.writeLong(history.timeAt(i));
+            out.writeByte(history.typeAt(i));
+            out.writeLong(history.amountAt(i));
+            writeString(out, history.noteAt(i));
+        }
+        return version;
+    }
+
+    // the rest of a record whose id has already been read
+    static Account readAccount(Input in, long id) throws IOException {
+        byte type = in.get();
+        String owner = in.getString();
+        int free = in.getInt();
+        long param = in.getLong();
+        long balance = in.getLong();
+        long aux = in.getLong();
+        long version = in.getLong();
+        int txCount = in.getInt();
+        Account acc = Journal.newAccount(type, id, owner, free, param);
+        for (int i = 0; i < txCount; i++) {
+            long at = in.getLong();
+            byte txType = in.get();
+            long amount = in.getLong();
+            acc.restoreEntry(at, txType, amount, in.getString());
+        }
+        acc.replayState(balance, aux, version);
+        return acc;
+    }
+
+    interface Input {
+        byte get() throws IOException;
+        int getInt() throws IOException;
+        long getLong() throws IOException;
+        String getString() throws IOException;
+    }
+
+    // a record already read into memory
+    static final class BufferInput implements Input {
+        private final ByteBuffer buf;
+
+        BufferInput(ByteBuffer buf) { this.buf = buf; }
+
+        public byte get() { return buf.get(); }
+        public int getInt() { return buf.getInt(); }
+        public long getLong() { return buf.getLong(); }
+        public String getString() { return Journal.getString(buf); }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // reads through a sliding memory-mapped window, so snapshots over 2 GB work too
+    private static final class MappedInput implements Input {
+        private static final long WINDOW = 1L << 30;
+        private final FileChannel channel;
+        private final long size;
+        private long base;
+        private MappedByteBuffer buf;
+
+        MappedInput(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            this.buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(WINDOW, size));
+        }
+
+        private MappedByteBuffer need(int n) throws IOException {
+            if (buf.remaining() < n) {
+                base += buf.position();
+                if (base + n > size) throw new EOFException("Truncated snapshot");
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(WINDOW, size - base));
+            }
+            return buf;
+        }
+
+        boolean hasRemaining() { return base + buf.position() < size; }
+
+        public byte get() throws IOException { return need(1).get(); }
+        public int getInt() throws IOException { return need(4).getInt(); }
+        public long getLong() throws IOException { return need(8).getLong(); }
+
+        public String getString() throws IOException {
+            int length = getInt();
+            byte[] bytes = new byte[length];
+            need(length).get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
+
+/* -----------------------------
+   TransferBenchmark: contention benchmark for Bank.transfer
+   ----------------------------- */
+
+/*
+ * Runs random transfers from many threads for a fixed time. Most transfers touch a
+ * small set of hot accounts so the lock ordering is exercised under real contention.
+ * Savings accounts with a zero rate are used so no fees leak out, which lets the run
+ * finish by checking that the total amount of money is unchanged.
+ */
+class TransferBenchmark {
+    public static void run(String[] args) throws IOException, InterruptedException {
+        int threads = intArg(args, 0, Runtime.getRuntime().availableProcessors());
+        int accountCount = intArg(args, 1, 10_000);
+        int hotCount = intArg(args, 2, 8);
+        int seconds = intArg(args, 3, 5);
+        if (accountCount < 2 || hotCount < 2 || hotCount > accountCount) {
+            throw new IllegalArgumentException("Need at least 2 accounts and 2..accounts hot accounts.");
+        }
+
+        Bank bank = new Bank("Benchmark Bank");
+        String journalPath = BankApp.optionValue(args, "--journal");
+        if (journalPath != null) {
+            Path path = Paths.get(journalPath);
+            Files.deleteIfExists(path); // always start from an empty ledger
+            bank.openJournal(path);
+        }
+        long[] ids = new long[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            ids[i] = bank.openAccount(new SavingsAccount("Owner" + i, 100_000_000, 0.0)).getId();
+        }
+        long totalBefore = totalBalance(bank);
+
+        LongAdder done = new LongAdder();
+        LongAdder rejected = new LongAdder();
+        // with --pipeline, workers only publish transfers and the writer thread applies them
+        LedgerPipeline pipeline = BankApp.ledgerPipeline(bank, args);
+        LedgerPipeline.Completion counted = (result, error) -> (error == null ? done : rejected).increment();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline) {
+                    // 80% of transfers go between hot accounts
+                    int range = rnd.nextInt(100) < 80 ? hotCount : accountCount;
+                    int a = rnd.nextInt(range);
+                    int b = rnd.nextInt(range - 1);
+                    if (b >= a) b++;
+                    if (pipeline != null) {
+                        pipeline.submitTransfer(ids[a], ids[b], 1 + rnd.nextInt(10_000), counted);
+                        continue;
+                    }
+                    try {
+                        bank.transfer(ids[a], ids[b], 1 + rnd.nextInt(10_000));
+                        done.increment();
+                    } catch (IllegalArgumentException ex) {
+                        rejected.increment();
+                    }
+                }
+            }, "transfer-" + t);
+            workers[t].start();
+        }
+        for (Thread w : workers) w.join();
+        if (pipeline != null) pipeline.close(); // finishes what was published before the deadline
+
+        long totalAfter = totalBalance(bank);
+        System.out.printf("threads=%d accounts=%d hot=%d seconds=%d%s%n", threads, accountCount, hotCount, seconds,
+                pipeline != null ? " pipeline" : "");
+        System.out.printf("transfers=%d rejected=%d throughput=%.0f transfers/sec%n",
+                done.sum(), rejected.sum(), done.sum() / (double) seconds);
+        System.out.printf("total before=%s after=%s -> %s%n", Money.format(totalBefore), Money.format(totalAfter),
+                totalBefore == totalAfter ? "OK" : "MONEY LOST");
+        System.out.println("journal: " + bank.journalStats());
+        bank.close();
+    }
+
+    // positional argument i, unless the options (--name value) start before it
+    private static int intArg(String[] args, int i, int defaultValue) {
+        for (int k = 0; k <= i; k++) {
+            if (k >= args.length || args[k].startsWith("--")) return defaultValue;
         }
+        return Integer.parseInt(args[i]);
+    }
+
+    private static long totalBalance(Bank bank) {
+        long total = 0;
+        for (Account a : bank.getAccounts()) total += a.getBalance();
+        return total;
     }
 }
@@ -0,0 +1,112 @@
+package bankapp;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * Single-threaded cost of the basic ledger operations. Every operation appends to the
+ * account's history, so accounts are recreated for each iteration and iterations are
+ * kept short; otherwise the history (and GC) would grow across the whole run.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Thread)
+public class AccountBenchmarks {
+    private static final long RICH = 1_000_000_000_000L; // enough cents to never run out
+    private static final int POSTINGS_PER_LOG = 1 << 20;
+
+    private SavingsAccount savings;
+    private SavingsAccount interestBearing;
+    private CheckingAccount checkingFree;
+    private CheckingAccount checkingWithFee;
+    private Bank bank;
+    private long fromId;
+    private long toId;
+    private Transaction transaction;
+    private TransactionLog history;
+    private int historyIndex;
+    private TransactionLog postings;
+    private int postingCount;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        savings = new SavingsAccount("Alice", RICH, 0.0);
+        // 1 ppm a year on 1M: about 8 cents per month-end, so compounding over millions of
+        // calls stays far from overflow while every call still posts interest
+        interestBearing = new SavingsAccount("Dave", 100_000_000, 0.000001);
+        checkingFree = new CheckingAccount("Bob", RICH, Integer.MAX_VALUE, 100);
+        checkingWithFee = new CheckingAccount("Carol", RICH, 0, 100);
+        bank = new Bank("Benchmark Bank");
+        fromId = bank.openAccount(new SavingsAccount("From", RICH, 0.0)).getId();
+        toId = bank.openAccount(new SavingsAccount("To", RICH, 0.0)).getId();
+        transaction = new Transaction(LocalDateTime.now(), "DEPOSIT", 12_345, "Deposit to account");
+        history = new TransactionLog();
+        for (int i = 0; i < 1024; i++) history.add(LedgerClock.now(), Transaction.DEPOSIT, i, "Deposit to account");
+        postings = new TransactionLog();
+        postingCount = 0;
+    }
+
+    @Benchmark
+    public void accountDeposit() {
+        savings.deposit(100);
+    }
+
+    @Benchmark
+    public void accountWithdraw() {
+        savings.withdraw(100);
+    }
+
+    @Benchmark
+    public void checkingWithdrawFree() {
+        checkingFree.withdraw(100);
+    }
+
+    @Benchmark
+    public void checkingWithdrawWithFee() {
+        checkingWithFee.withdraw(100);
+    }
+
+    // one month of interest per call (no billing calendar attached)
+    @Benchmark
+    public void savingsMonthlyUpdate() {
+        interestBearing.monthlyUpdate();
+    }
+
+    @Benchmark
+    public void bankTransfer() {
+        bank.transfer(fromId, toId, 100);
+    }
+
+    // one posting, as every deposit or withdrawal makes; the log is replaced now and
+    // then so that it does not grow for the whole iteration
+    @Benchmark
+    public void transactionCreate() {
+        if (postingCount++ == POSTINGS_PER_LOG) {
+            postings = new TransactionLog();
+            postingCount = 1;
+        }
+        postings.add(LedgerClock.now(), Transaction.DEPOSIT, 12_345, "Deposit to account");
+    }
+
+    // a Transaction object materialized from the columns of an existing history
+    @Benchmark
+    public Transaction transactionMaterialize() {
+        return history.get(historyIndex++ & 1023);
+    }
+
+    @Benchmark
+    public String transactionToString() {
+        return transaction.toString();
+    }
+
+    @Benchmark
+    public void transactionCreateAndRender(Blackhole bh) {
+        bh.consume(history.get(historyIndex++ & 1023).toString());
+    }
+}
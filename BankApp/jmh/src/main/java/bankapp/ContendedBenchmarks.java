@@ -0,0 +1,82 @@
+package bankapp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Several threads against one Bank. hotAccounts sets how concentrated the traffic is
+ * (2 = every transfer fights for the same pair of locks); journaled adds the
+ * write-ahead journal, so group commit shows up in the numbers. Run with -t to change
+ * the thread count, e.g. -t 1 for the uncontended baseline.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@Threads(4)
+@State(Scope.Benchmark)
+public class ContendedBenchmarks {
+    private static final long RICH = 1_000_000_000_000L;
+
+    @Param({"2", "64", "4096"})
+    public int hotAccounts;
+
+    @Param({"false", "true"})
+    public boolean journaled;
+
+    private Bank bank;
+    private long[] ids;
+    private Account shared;
+    private Path journal;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        bank = new Bank("Benchmark Bank");
+        if (journaled) {
+            journal = Files.createTempFile("bankapp-jmh", ".journal");
+            bank.openJournal(journal);
+        }
+        ids = new long[hotAccounts];
+        for (int i = 0; i < hotAccounts; i++) {
+            ids[i] = bank.openAccount(new SavingsAccount("Owner" + i, RICH, 0.0)).getId();
+        }
+        shared = bank.getAccount(ids[0]);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        bank.close();
+        if (journal != null) Files.deleteIfExists(journal);
+    }
+
+    // every thread on the same account monitor
+    @Benchmark
+    public void sharedDeposit() {
+        bank.deposit(shared.getId(), 100);
+    }
+
+    @Benchmark
+    public void randomDeposit() {
+        bank.deposit(ids[ThreadLocalRandom.current().nextInt(ids.length)], 100);
+    }
+
+    @Benchmark
+    public void randomTransfer() {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        int a = rnd.nextInt(ids.length);
+        int b = rnd.nextInt(ids.length - 1);
+        if (b >= a) b++;
+        bank.transfer(ids[a], ids[b], 100);
+    }
+
+    @Benchmark
+    public long balance() {
+        return bank.balance(ids[ThreadLocalRandom.current().nextInt(ids.length)]);
+    }
+}